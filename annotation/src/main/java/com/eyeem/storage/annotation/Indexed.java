@@ -0,0 +1,19 @@
+package com.eyeem.storage.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field or method whose value gets a secondary index in the
+ * generated storage, named after the annotated element.
+ */
+@Target({ElementType.METHOD, ElementType.FIELD})
+@Retention(RetentionPolicy.CLASS)
+public @interface Indexed {
+   /**
+    * @return true for an index supporting range lookups, hash index otherwise
+    */
+   boolean sorted() default false;
+}
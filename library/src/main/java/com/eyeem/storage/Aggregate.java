@@ -0,0 +1,247 @@
+package com.eyeem.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Count, sum, min & max of storage items matching a {@link Storage.Query},
+ * optionally grouped by a key. Kept up to date as items get added, updated
+ * or removed from the storage, see {@link Storage#addAggregate(String, Storage.Query,
+ * Storage.ComparableKey, Storage.LongKey)}. Every change is published to subscribers
+ * as {@link Storage.Subscription#AGGREGATE} with the changed group keys under "groups".
+ */
+public class Aggregate<T> {
+
+   /**
+    * Totals of a single group
+    */
+   public static class Group {
+      public final Object key;
+      private long count;
+      private long sum;
+      private TreeMap<Long, Integer> values;
+
+      Group(Object key, boolean tracksValues) {
+         this.key = key;
+         if (tracksValues) {
+            values = new TreeMap<Long, Integer>();
+         }
+      }
+
+      Group(Group group) {
+         this.key = group.key;
+         this.count = group.count;
+         this.sum = group.sum;
+         if (group.values != null) {
+            this.values = new TreeMap<Long, Integer>(group.values);
+         }
+      }
+
+      public long count() {
+         return count;
+      }
+
+      public long sum() {
+         return sum;
+      }
+
+      /**
+       * @return smallest value or null if there's none
+       */
+      public Long min() {
+         return values == null || values.isEmpty() ? null : values.firstKey();
+      }
+
+      /**
+       * @return biggest value or null if there's none
+       */
+      public Long max() {
+         return values == null || values.isEmpty() ? null : values.lastKey();
+      }
+
+      void add(Long value) {
+         count++;
+         if (value != null) {
+            sum += value;
+            Integer n = values.get(value);
+            values.put(value, n == null ? 1 : n + 1);
+         }
+      }
+
+      void remove(Long value) {
+         count--;
+         if (value != null) {
+            sum -= value;
+            Integer n = values.get(value);
+            if (n == null || n <= 1) {
+               values.remove(value);
+            } else {
+               values.put(value, n - 1);
+            }
+         }
+      }
+   }
+
+   /**
+    * What an item contributed to
+    */
+   private static class Contribution {
+      final Object group;
+      final Long value;
+
+      Contribution(Object group, Long value) {
+         this.group = group;
+         this.value = value;
+      }
+
+      boolean same(Object group, Long value) {
+         return (this.group == null ? group == null : this.group.equals(group))
+            && (this.value == null ? value == null : this.value.equals(value));
+      }
+   }
+
+   private final Storage.Query<T> filter;
+   private final Storage.ComparableKey<T> groupBy;
+   private final Storage.LongKey<T> value;
+   private final HashMap<String, Contribution> contributions = new HashMap<String, Contribution>();
+   private final HashMap<Object, Group> groups = new HashMap<Object, Group>();
+   final Storage.Subscribers subscribers = new Storage.Subscribers();
+
+   Aggregate(Storage.Query<T> filter, Storage.ComparableKey<T> groupBy, Storage.LongKey<T> value) {
+      this.filter = filter;
+      this.groupBy = groupBy;
+      this.value = value;
+   }
+
+   public void subscribe(Storage.Subscription subscription) {
+      subscribers.addSubscriber(subscription);
+   }
+
+   public void unsubscribe(Storage.Subscription subscription) {
+      subscribers.removeSubscriber(subscription);
+   }
+
+   /**
+    * @return totals over all the groups
+    */
+   public synchronized Group total() {
+      Group total = new Group(null, value != null);
+      for (Group group : groups.values()) {
+         total.count += group.count;
+         total.sum += group.sum;
+         if (group.values != null) {
+            for (Map.Entry<Long, Integer> e : group.values.entrySet()) {
+               Integer n = total.values.get(e.getKey());
+               total.values.put(e.getKey(), n == null ? e.getValue() : n + e.getValue());
+            }
+         }
+      }
+      return total;
+   }
+
+   /**
+    * @param key group key, null when not grouping
+    * @return copy of the group's totals or null if it's empty
+    */
+   public synchronized Group group(Object key) {
+      Group group = groups.get(key);
+      return group == null ? null : new Group(group);
+   }
+
+   /**
+    * @return copy of all non empty groups
+    */
+   public synchronized HashMap<Object, Group> groups() {
+      HashMap<Object, Group> copy = new HashMap<Object, Group>(groups.size());
+      for (Group group : groups.values()) {
+         copy.put(group.key, new Group(group));
+      }
+      return copy;
+   }
+
+   public synchronized long count() {
+      long count = 0;
+      for (Group group : groups.values()) {
+         count += group.count;
+      }
+      return count;
+   }
+
+   public long count(Object key) {
+      Group group = group(key);
+      return group == null ? 0 : group.count;
+   }
+
+   /**
+    * Accounts for the current state of the item
+    * @param id
+    * @param object
+    */
+   void update(String id, T object) {
+      Object[] changed;
+      synchronized (this) {
+         boolean matches = object != null && (filter == null || filter.eval(object));
+         Object group = matches && groupBy != null ? groupBy.key(object) : null;
+         Long itemValue = matches && value != null ? value.key(object) : null;
+         Contribution previous = contributions.get(id);
+         if (previous == null && !matches)
+            return;
+         if (previous != null && matches && previous.same(group, itemValue))
+            return;
+         if (previous != null) {
+            withdraw(id, previous);
+         }
+         if (matches) {
+            contributions.put(id, new Contribution(group, itemValue));
+            Group g = groups.get(group);
+            if (g == null) {
+               g = new Group(group, value != null);
+               groups.put(group, g);
+            }
+            g.add(itemValue);
+         }
+         changed = previous == null || !matches || sameKey(previous.group, group)
+            ? new Object[]{matches ? group : previous.group}
+            : new Object[]{previous.group, group};
+      }
+      publish(changed);
+   }
+
+   void remove(String id) {
+      Object group;
+      synchronized (this) {
+         Contribution previous = contributions.get(id);
+         if (previous == null)
+            return;
+         withdraw(id, previous);
+         group = previous.group;
+      }
+      publish(new Object[]{group});
+   }
+
+   synchronized void clear() {
+      contributions.clear();
+      groups.clear();
+   }
+
+   private void withdraw(String id, Contribution contribution) {
+      contributions.remove(id);
+      Group g = groups.get(contribution.group);
+      if (g == null)
+         return;
+      g.remove(contribution.value);
+      if (g.count <= 0) {
+         groups.remove(contribution.group);
+      }
+   }
+
+   private static boolean sameKey(Object a, Object b) {
+      return a == null ? b == null : a.equals(b);
+   }
+
+   private void publish(Object[] changed) {
+      subscribers.updateAll(new Storage.Subscription.Action(Storage.Subscription.AGGREGATE)
+         .param("groups", java.util.Arrays.asList(changed)));
+   }
+}
@@ -0,0 +1,183 @@
+package com.eyeem.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+
+/**
+ * W-TinyLFU flavoured policy. New items land in a small LRU window, items
+ * falling out of it go to the probation segment and get promoted to the
+ * protected segment when accessed again. Access frequencies are estimated
+ * with a count-min sketch that periodically ages.
+ *
+ * <p>
+ * Storage can't refuse an item so the admission duel happens when picking
+ * eviction candidates: the oldest probation item is matched against the
+ * most recently admitted one and the less frequent of them goes first.
+ * Candidates are walked lazily, so picking a few victims doesn't copy
+ * the whole cache.
+ */
+public class FrequencyEvictionPolicy implements Storage.EvictionPolicy {
+
+   private static final int[] SEEDS = {0x97cb3127, 0xb1a4f3e5, 0x2f79b0d3, 0x5c0d4c99};
+   private static final int MAX_FREQUENCY = 15;
+
+   private final LinkedHashMap<String, Boolean> window = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+   private final LinkedHashMap<String, Boolean> probation = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+   private final LinkedHashMap<String, Boolean> protectedSegment = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+
+   private final int windowCapacity;
+   private final int protectedCapacity;
+
+   private final int[] sketch;
+   private final int sampleSize;
+   private int additions;
+   private String lastAdmitted;
+
+   /**
+    * @param capacity expected number of items, usually {@link Storage#maxSize()}
+    */
+   public FrequencyEvictionPolicy(int capacity) {
+      capacity = Math.max(capacity, 1);
+      windowCapacity = Math.max(1, capacity / 100);
+      protectedCapacity = (int) ((capacity - windowCapacity) * 0.8f);
+      int width = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+      sketch = new int[width * SEEDS.length];
+      sampleSize = 10 * capacity;
+   }
+
+   @Override public void onInsert(String id) {
+      increment(id);
+      window.put(id, Boolean.TRUE);
+      if (window.size() > windowCapacity) {
+         String eldest = window.keySet().iterator().next();
+         window.remove(eldest);
+         probation.put(eldest, Boolean.TRUE);
+         lastAdmitted = eldest;
+      }
+   }
+
+   @Override public void onAccess(String id) {
+      increment(id);
+      if (window.get(id) != null || protectedSegment.get(id) != null)
+         return;
+      if (probation.remove(id) != null) {
+         protectedSegment.put(id, Boolean.TRUE);
+         if (protectedSegment.size() > protectedCapacity) {
+            String eldest = protectedSegment.keySet().iterator().next();
+            protectedSegment.remove(eldest);
+            probation.put(eldest, Boolean.TRUE);
+            lastAdmitted = eldest;
+         }
+      }
+   }
+
+   @Override public void onRemove(String id) {
+      if (window.remove(id) == null && probation.remove(id) == null)
+         protectedSegment.remove(id);
+   }
+
+   @Override public void clear() {
+      window.clear();
+      probation.clear();
+      protectedSegment.clear();
+      for (int i = 0; i < sketch.length; i++) {
+         sketch[i] = 0;
+      }
+      additions = 0;
+      lastAdmitted = null;
+   }
+
+   @Override public Iterator<String> candidates() {
+      String victim = probation.isEmpty() ? null : probation.keySet().iterator().next();
+      String candidate = lastAdmitted != null && probation.containsKey(lastAdmitted) ? lastAdmitted : null;
+      // candidate only stays if it's been seen more often than the victim
+      final String first = candidate == null || frequency(candidate) > frequency(victim) ? victim : candidate;
+      return new Iterator<String>() {
+         int segment = 0;
+         Iterator<String> current = probation.keySet().iterator();
+         String next = first != null ? first : advance();
+
+         private String advance() {
+            while (true) {
+               while (current.hasNext()) {
+                  String id = current.next();
+                  if (!id.equals(first))
+                     return id;
+               }
+               if (++segment == 1) {
+                  current = protectedSegment.keySet().iterator();
+               } else if (segment == 2) {
+                  current = window.keySet().iterator();
+               } else {
+                  return null;
+               }
+            }
+         }
+
+         @Override public boolean hasNext() {
+            return next != null;
+         }
+
+         @Override public String next() {
+            if (next == null)
+               throw new NoSuchElementException();
+            String id = next;
+            next = advance();
+            return id;
+         }
+
+         @Override public void remove() {
+            throw new UnsupportedOperationException();
+         }
+      };
+   }
+
+   /**
+    * @param id
+    * @return estimated access frequency of the given id
+    */
+   public int frequency(String id) {
+      int hash = spread(id.hashCode());
+      int width = sketch.length / SEEDS.length;
+      int frequency = MAX_FREQUENCY;
+      for (int i = 0; i < SEEDS.length; i++) {
+         frequency = Math.min(frequency, sketch[i * width + indexOf(hash, i, width)]);
+      }
+      return frequency;
+   }
+
+   private void increment(String id) {
+      int hash = spread(id.hashCode());
+      int width = sketch.length / SEEDS.length;
+      boolean added = false;
+      for (int i = 0; i < SEEDS.length; i++) {
+         int index = i * width + indexOf(hash, i, width);
+         if (sketch[index] < MAX_FREQUENCY) {
+            sketch[index]++;
+            added = true;
+         }
+      }
+      if (added && ++additions >= sampleSize) {
+         age();
+      }
+   }
+
+   private void age() {
+      for (int i = 0; i < sketch.length; i++) {
+         sketch[i] >>>= 1;
+      }
+      additions /= 2;
+   }
+
+   private static int indexOf(int hash, int i, int width) {
+      int h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 16;
+      return h & (width - 1);
+   }
+
+   private static int spread(int x) {
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      return (x >>> 16) ^ x;
+   }
+}
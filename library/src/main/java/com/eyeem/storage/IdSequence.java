@@ -0,0 +1,567 @@
+package com.eyeem.storage;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Sequence of ids backed by {@link IdTable} handles kept in a persistent
+ * B+-tree of small int arrays. Single element edits copy just the path to
+ * the changed chunk, O(log n), the rest of the tree is shared. Reads work on
+ * the current root without locking. Iterators and {@link #snapshot()} are
+ * immutable views of the tree at the time they were taken.
+ */
+class IdSequence extends AbstractList<String> implements RandomAccess {
+
+   static final int LEAF_SIZE = 64;
+   static final int BRANCH_SIZE = 32;
+
+   private static final Node EMPTY = new Node(new int[0]);
+
+   private final IdTable table;
+   private volatile Node root;
+
+   IdSequence(IdTable table) {
+      this(table, EMPTY);
+   }
+
+   IdSequence(IdTable table, Collection<String> ids) {
+      this.table = table;
+      this.root = build(handles(table, ids));
+   }
+
+   private IdSequence(IdTable table, Node root) {
+      this.table = table;
+      this.root = root;
+   }
+
+   /**
+    * @return independent sequence sharing the current tree
+    */
+   IdSequence copy() {
+      return new IdSequence(table, root);
+   }
+
+   /**
+    * @param start
+    * @param end
+    * @return independent sequence with the ids of the given range
+    */
+   IdSequence slice(int start, int end) {
+      Node node = root;
+      checkRange(start, end, node.size);
+      if (start == 0 && end == node.size)
+         return new IdSequence(table, node);
+      int[] array = new int[end - start];
+      copy(node, start, end, array, 0);
+      return new IdSequence(table, build(array));
+   }
+
+   /**
+    * @param mask one flag per id
+    * @return independent sequence of the ids whose flag is set
+    */
+   IdSequence select(boolean[] mask) {
+      Node node = root;
+      if (mask.length != node.size)
+         throw new IllegalArgumentException("mask size " + mask.length + " doesn't match " + node.size);
+      int count = 0;
+      for (boolean selected : mask) {
+         if (selected) count++;
+      }
+      if (count == node.size)
+         return new IdSequence(table, node);
+      int[] all = new int[node.size];
+      copy(node, 0, node.size, all, 0);
+      int[] selected = new int[count];
+      for (int i = 0, j = 0; i < all.length; i++) {
+         if (mask[i])
+            selected[j++] = all[i];
+      }
+      return new IdSequence(table, build(selected));
+   }
+
+   /**
+    * @return immutable view of the current ids
+    */
+   java.util.List<String> snapshot() {
+      Node node = root;
+      return new Snapshot(table, node, 0, node.size);
+   }
+
+   @Override public String get(int index) {
+      Node node = root;
+      checkIndex(index, node.size);
+      return table.id(get(node, index));
+   }
+
+   @Override public int size() {
+      return root.size;
+   }
+
+   @Override public synchronized boolean add(String id) {
+      Node node = root;
+      root = insert(node, node.size, table.handle(id));
+      return true;
+   }
+
+   @Override public synchronized void add(int index, String id) {
+      Node node = root;
+      if (index < 0 || index > node.size)
+         throw new IndexOutOfBoundsException("index=" + index + ", size=" + node.size);
+      root = insert(node, index, table.handle(id));
+   }
+
+   @Override public boolean addAll(Collection<? extends String> ids) {
+      return addAll(-1, ids);
+   }
+
+   @Override public synchronized boolean addAll(int index, Collection<? extends String> ids) {
+      Node node = root;
+      if (index < 0) {
+         index = node.size;
+      } else if (index > node.size) {
+         throw new IndexOutOfBoundsException("index=" + index + ", size=" + node.size);
+      }
+      if (ids.isEmpty())
+         return false;
+      int[] batch = handles(table, ids);
+      if (batch.length < LEAF_SIZE) {
+         for (int i = 0; i < batch.length; i++) {
+            node = insert(node, index + i, batch[i]);
+         }
+      } else {
+         int[] array = new int[node.size + batch.length];
+         copy(node, 0, index, array, 0);
+         System.arraycopy(batch, 0, array, index, batch.length);
+         copy(node, index, node.size, array, index + batch.length);
+         node = build(array);
+      }
+      root = node;
+      return true;
+   }
+
+   @Override public synchronized String remove(int index) {
+      Node node = root;
+      checkIndex(index, node.size);
+      String id = table.id(get(node, index));
+      root = collapse(remove(node, index));
+      return id;
+   }
+
+   @Override public synchronized boolean remove(Object id) {
+      int index = indexOf(id);
+      if (index < 0)
+         return false;
+      remove(index);
+      return true;
+   }
+
+   @Override public boolean removeAll(Collection<?> ids) {
+      return filter(ids, false);
+   }
+
+   @Override public boolean retainAll(Collection<?> ids) {
+      return filter(ids, true);
+   }
+
+   private synchronized boolean filter(Collection<?> ids, boolean retain) {
+      Node node = root;
+      int[] array = new int[node.size];
+      copy(node, 0, node.size, array, 0);
+      int count = 0;
+      for (int handle : array) {
+         if (ids.contains(table.id(handle)) == retain)
+            array[count++] = handle;
+      }
+      if (count == node.size)
+         return false;
+      int[] kept = new int[count];
+      System.arraycopy(array, 0, kept, 0, count);
+      root = build(kept);
+      return true;
+   }
+
+   @Override public synchronized String set(int index, String id) {
+      Node node = root;
+      checkIndex(index, node.size);
+      String previous = table.id(get(node, index));
+      root = set(node, index, table.handle(id));
+      return previous;
+   }
+
+   @Override public synchronized void clear() {
+      root = EMPTY;
+   }
+
+   @Override public int indexOf(Object id) {
+      int handle = id instanceof String ? table.find((String) id) : -1;
+      if (handle < 0)
+         return -1;
+      Cursor cursor = new Cursor(root, 0);
+      while (cursor.leaf != null) {
+         int[] handles = cursor.leaf.handles;
+         for (int i = 0; i < handles.length; i++) {
+            if (handles[i] == handle)
+               return cursor.start + i;
+         }
+         cursor.next();
+      }
+      return -1;
+   }
+
+   @Override public int lastIndexOf(Object id) {
+      int handle = id instanceof String ? table.find((String) id) : -1;
+      if (handle < 0)
+         return -1;
+      Node node = root;
+      for (int i = node.size - 1; i >= 0; i--) {
+         if (get(node, i) == handle)
+            return i;
+      }
+      return -1;
+   }
+
+   @Override public boolean contains(Object id) {
+      return indexOf(id) >= 0;
+   }
+
+   @Override public Iterator<String> iterator() {
+      return new Ids(table, root, 0, root.size);
+   }
+
+   @Override public java.util.List<String> subList(int start, int end) {
+      Node node = root;
+      checkRange(start, end, node.size);
+      return new Snapshot(table, node, start, end);
+   }
+
+   private static void checkIndex(int index, int size) {
+      if (index < 0 || index >= size)
+         throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+   }
+
+   private static void checkRange(int start, int end, int size) {
+      if (start < 0 || end > size || start > end)
+         throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", size=" + size);
+   }
+
+   private static int[] handles(IdTable table, Collection<? extends String> ids) {
+      if (ids instanceof IdSequence && ((IdSequence) ids).table == table) {
+         Node node = ((IdSequence) ids).root;
+         int[] array = new int[node.size];
+         copy(node, 0, node.size, array, 0);
+         return array;
+      }
+      int[] array = new int[ids.size()];
+      int i = 0;
+      for (String id : ids) {
+         if (i == array.length)
+            break;
+         array[i++] = table.handle(id);
+      }
+      if (i < array.length) {
+         int[] shorter = new int[i];
+         System.arraycopy(array, 0, shorter, 0, i);
+         return shorter;
+      }
+      return array;
+   }
+
+   /**
+    * Tree node, either a leaf holding handles or a branch holding children
+    * along with their cumulative sizes. Nodes are never modified.
+    */
+   static final class Node {
+      final int[] handles;
+      final Node[] children;
+      final int[] ends;
+      final int size;
+
+      Node(int[] handles) {
+         this.handles = handles;
+         this.children = null;
+         this.ends = null;
+         this.size = handles.length;
+      }
+
+      Node(Node[] children) {
+         this.handles = null;
+         this.children = children;
+         this.ends = new int[children.length];
+         int total = 0;
+         for (int i = 0; i < children.length; i++) {
+            total += children[i].size;
+            ends[i] = total;
+         }
+         this.size = total;
+      }
+
+      boolean isLeaf() {
+         return children == null;
+      }
+
+      /**
+       * @return index of the child holding the given position, the last one
+       * for the position right after the end
+       */
+      int child(int index) {
+         int low = 0;
+         int high = ends.length - 1;
+         while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ends[mid] > index) {
+               high = mid;
+            } else {
+               low = mid + 1;
+            }
+         }
+         return low;
+      }
+
+      int start(int child) {
+         return child == 0 ? 0 : ends[child - 1];
+      }
+   }
+
+   static int get(Node node, int index) {
+      while (!node.isLeaf()) {
+         int c = node.child(index);
+         index -= node.start(c);
+         node = node.children[c];
+      }
+      return node.handles[index];
+   }
+
+   static Node set(Node node, int index, int handle) {
+      if (node.isLeaf()) {
+         int[] handles = node.handles.clone();
+         handles[index] = handle;
+         return new Node(handles);
+      }
+      int c = node.child(index);
+      Node[] children = node.children.clone();
+      children[c] = set(children[c], index - node.start(c), handle);
+      return new Node(children);
+   }
+
+   static Node insert(Node node, int index, int handle) {
+      Node[] result = insertInto(node, index, handle);
+      return result.length == 1 ? result[0] : new Node(result);
+   }
+
+   private static Node[] insertInto(Node node, int index, int handle) {
+      if (node.isLeaf()) {
+         int[] old = node.handles;
+         int[] handles = new int[old.length + 1];
+         System.arraycopy(old, 0, handles, 0, index);
+         handles[index] = handle;
+         System.arraycopy(old, index, handles, index + 1, old.length - index);
+         if (handles.length <= LEAF_SIZE)
+            return new Node[]{new Node(handles)};
+         int half = handles.length / 2;
+         int[] left = new int[half];
+         int[] right = new int[handles.length - half];
+         System.arraycopy(handles, 0, left, 0, half);
+         System.arraycopy(handles, half, right, 0, right.length);
+         return new Node[]{new Node(left), new Node(right)};
+      }
+      int c = node.child(index);
+      Node[] replaced = insertInto(node.children[c], index - node.start(c), handle);
+      Node[] old = node.children;
+      Node[] children = new Node[old.length + replaced.length - 1];
+      System.arraycopy(old, 0, children, 0, c);
+      System.arraycopy(replaced, 0, children, c, replaced.length);
+      System.arraycopy(old, c + 1, children, c + replaced.length, old.length - c - 1);
+      if (children.length <= BRANCH_SIZE)
+         return new Node[]{new Node(children)};
+      int half = children.length / 2;
+      Node[] left = new Node[half];
+      Node[] right = new Node[children.length - half];
+      System.arraycopy(children, 0, left, 0, half);
+      System.arraycopy(children, half, right, 0, right.length);
+      return new Node[]{new Node(left), new Node(right)};
+   }
+
+   static Node remove(Node node, int index) {
+      if (node.isLeaf()) {
+         int[] old = node.handles;
+         int[] handles = new int[old.length - 1];
+         System.arraycopy(old, 0, handles, 0, index);
+         System.arraycopy(old, index + 1, handles, index, old.length - index - 1);
+         return new Node(handles);
+      }
+      int c = node.child(index);
+      Node child = remove(node.children[c], index - node.start(c));
+      Node[] old = node.children;
+      if (child.size > 0) {
+         Node[] children = old.clone();
+         children[c] = child;
+         return new Node(children);
+      }
+      if (old.length == 1)
+         return EMPTY;
+      Node[] children = new Node[old.length - 1];
+      System.arraycopy(old, 0, children, 0, c);
+      System.arraycopy(old, c + 1, children, c, old.length - c - 1);
+      return new Node(children);
+   }
+
+   private static Node collapse(Node node) {
+      while (!node.isLeaf() && node.children.length == 1) {
+         node = node.children[0];
+      }
+      return node;
+   }
+
+   /**
+    * Builds a tree out of full leaves
+    * @param handles
+    * @return
+    */
+   static Node build(int[] handles) {
+      if (handles.length <= LEAF_SIZE)
+         return handles.length == 0 ? EMPTY : new Node(handles);
+      Node[] level = new Node[(handles.length + LEAF_SIZE - 1) / LEAF_SIZE];
+      for (int i = 0; i < level.length; i++) {
+         int from = i * LEAF_SIZE;
+         int[] leaf = new int[Math.min(LEAF_SIZE, handles.length - from)];
+         System.arraycopy(handles, from, leaf, 0, leaf.length);
+         level[i] = new Node(leaf);
+      }
+      while (level.length > 1) {
+         Node[] parents = new Node[(level.length + BRANCH_SIZE - 1) / BRANCH_SIZE];
+         for (int i = 0; i < parents.length; i++) {
+            int from = i * BRANCH_SIZE;
+            Node[] children = new Node[Math.min(BRANCH_SIZE, level.length - from)];
+            System.arraycopy(level, from, children, 0, children.length);
+            parents[i] = new Node(children);
+         }
+         level = parents;
+      }
+      return level[0];
+   }
+
+   /**
+    * Copies handles in [start, end) of the tree to the given array
+    */
+   static void copy(Node node, int start, int end, int[] out, int offset) {
+      if (start >= end)
+         return;
+      if (node.isLeaf()) {
+         System.arraycopy(node.handles, start, out, offset, end - start);
+         return;
+      }
+      for (int c = node.child(start); c < node.children.length; c++) {
+         int childStart = node.start(c);
+         if (childStart >= end)
+            break;
+         int from = Math.max(start, childStart);
+         int to = Math.min(end, node.ends[c]);
+         copy(node.children[c], from - childStart, to - childStart, out, offset + from - start);
+      }
+   }
+
+   /**
+    * Walks the leaves of a tree in order
+    */
+   private static final class Cursor {
+      final Node root;
+      Node leaf;
+      int start;
+
+      Cursor(Node root, int index) {
+         this.root = root;
+         seek(index);
+      }
+
+      void seek(int index) {
+         if (index >= root.size) {
+            leaf = null;
+            start = root.size;
+            return;
+         }
+         Node node = root;
+         int offset = 0;
+         while (!node.isLeaf()) {
+            int c = node.child(index - offset);
+            offset += node.start(c);
+            node = node.children[c];
+         }
+         leaf = node;
+         start = offset;
+      }
+
+      void next() {
+         seek(start + leaf.size);
+      }
+   }
+
+   private static final class Ids implements Iterator<String> {
+      final IdTable table;
+      final Cursor cursor;
+      final int end;
+      int index;
+
+      Ids(IdTable table, Node root, int start, int end) {
+         this.table = table;
+         this.cursor = new Cursor(root, start);
+         this.end = end;
+         this.index = start;
+      }
+
+      @Override public boolean hasNext() {
+         return index < end;
+      }
+
+      @Override public String next() {
+         if (index >= end)
+            throw new NoSuchElementException();
+         if (index - cursor.start >= cursor.leaf.size) {
+            cursor.next();
+         }
+         return table.id(cursor.leaf.handles[index++ - cursor.start]);
+      }
+
+      @Override public void remove() {
+         throw new UnsupportedOperationException();
+      }
+   }
+
+   /**
+    * Read only range of a tree
+    */
+   private static class Snapshot extends AbstractList<String> implements RandomAccess {
+      private final IdTable table;
+      private final Node root;
+      private final int offset;
+      private final int size;
+
+      Snapshot(IdTable table, Node root, int start, int end) {
+         this.table = table;
+         this.root = root;
+         this.offset = start;
+         this.size = end - start;
+      }
+
+      @Override public String get(int index) {
+         checkIndex(index, size);
+         return table.id(IdSequence.get(root, offset + index));
+      }
+
+      @Override public int size() {
+         return size;
+      }
+
+      @Override public Iterator<String> iterator() {
+         return new Ids(table, root, offset, offset + size);
+      }
+
+      @Override public java.util.List<String> subList(int start, int end) {
+         checkRange(start, end, size);
+         return new Snapshot(table, root, offset + start, offset + end);
+      }
+   }
+}
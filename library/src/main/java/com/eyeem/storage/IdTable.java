@@ -0,0 +1,93 @@
+package com.eyeem.storage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interns item ids of a {@link Storage} into dense int handles so that
+ * lists can hold primitive arrays and every id string exists only once.
+ * Handles are never reused: snapshots, views and diffs may still hold a
+ * released handle, it resolves to null rather than to another id.
+ */
+class IdTable {
+
+   private final ConcurrentHashMap<String, Integer> handles = new ConcurrentHashMap<String, Integer>();
+   private volatile AtomicReferenceArray<String> ids = new AtomicReferenceArray<String>(64);
+   private int count;
+
+   /**
+    * @param id
+    * @return handle for the id, assigned if needed
+    */
+   int handle(String id) {
+      Integer handle = handles.get(id);
+      if (handle != null)
+         return handle;
+      synchronized (this) {
+         handle = handles.get(id);
+         if (handle != null)
+            return handle;
+         AtomicReferenceArray<String> current = ids;
+         if (count == current.length()) {
+            AtomicReferenceArray<String> grown = new AtomicReferenceArray<String>(count * 2);
+            for (int i = 0; i < count; i++) {
+               grown.set(i, current.get(i));
+            }
+            ids = current = grown;
+         }
+         current.set(count, id);
+         handles.put(id, count);
+         return count++;
+      }
+   }
+
+   /**
+    * @param id
+    * @return handle for the id or -1 if it doesn't have one
+    */
+   int find(String id) {
+      if (id == null)
+         return -1;
+      Integer handle = handles.get(id);
+      return handle == null ? -1 : handle;
+   }
+
+   /**
+    * @param handle
+    * @return id for the handle, null once it got released
+    */
+   String id(int handle) {
+      return ids.get(handle);
+   }
+
+   /**
+    * @param id
+    * @return the single instance of the given id kept by the table
+    */
+   String intern(String id) {
+      if (id == null)
+         return null;
+      while (true) {
+         int handle = handle(id);
+         String interned = ids.get(handle);
+         // null if it got released in between, it gets a new handle then
+         if (interned != null)
+            return interned;
+      }
+   }
+
+   /**
+    * Forgets the id, called once nothing references it anymore
+    * @param id
+    */
+   synchronized void release(String id) {
+      Integer handle = handles.remove(id);
+      if (handle != null) {
+         ids.set(handle, null);
+      }
+   }
+
+   int size() {
+      return handles.size();
+   }
+}
@@ -0,0 +1,251 @@
+package com.eyeem.storage;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Changes to a list's ids & meta since its last snapshot. The journal starts
+ * with the snapshot's generation, followed by records:
+ * <pre>
+ * [length: int][crc: int][type: byte][payload]
+ * </pre>
+ * Replaying them in order over the snapshot gives the saved state, a journal
+ * of another generation is left over from a compaction and gets ignored.
+ * Callers synchronize on the {@link KryoObjectStore} of the list's class.
+ */
+class KryoJournal {
+
+   static final byte REMOVE = 1;
+   static final byte INSERT = 2;
+   static final byte TRIM = 3;
+   static final byte META = 4;
+
+   /**
+    * Size the journal has to reach before it's compacted into a snapshot
+    */
+   static final long MIN_COMPACTION_SIZE = 16 * 1024;
+
+   final File file;
+   long generation;
+   ArrayList<String> ids;
+   HashMap<String, Object> meta;
+   long size;
+   long snapshotSize;
+   boolean compacting;
+
+   KryoJournal(File file, long generation, ArrayList<String> ids, HashMap<String, Object> meta, long snapshotSize) {
+      this.file = file;
+      this.generation = generation;
+      this.ids = ids;
+      this.meta = meta;
+      this.snapshotSize = snapshotSize;
+   }
+
+   /**
+    * Applies the journal's records to the snapshot state. A record cut short
+    * by a crash gets truncated, a journal of another generation deleted.
+    */
+   void replay(Kryo kryo, Input input) throws IOException {
+      size = 0;
+      if (!file.exists())
+         return;
+      long fileLength = file.length();
+      long valid = 0;
+      FileInputStream stream = new FileInputStream(file);
+      try {
+         input.setInputStream(stream);
+         if (fileLength < 8 || input.readLong() != generation) {
+            valid = -1;
+            return;
+         }
+         valid = 8;
+         CRC32 crc32 = new CRC32();
+         byte[] payload = new byte[256];
+         while (valid < fileLength) {
+            int length;
+            int crc;
+            try {
+               length = input.readInt();
+               crc = input.readInt();
+            } catch (KryoException e) {
+               break;
+            }
+            if (length <= 0 || input.total() + length > fileLength)
+               break;
+            if (payload.length < length) {
+               payload = new byte[length];
+            }
+            input.readBytes(payload, 0, length);
+            crc32.reset();
+            crc32.update(payload, 0, length);
+            if ((int) crc32.getValue() != crc)
+               break;
+            apply(kryo, new Input(payload, 0, length));
+            valid = input.total();
+         }
+      } finally {
+         input.setInputStream(null);
+         stream.close();
+         if (valid < 0) {
+            file.delete();
+         } else if (valid < fileLength) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+               raf.setLength(valid);
+            } finally {
+               raf.close();
+            }
+         }
+      }
+      size = Math.max(0, valid);
+   }
+
+   private void apply(Kryo kryo, Input record) {
+      switch (record.readByte()) {
+         case REMOVE: {
+            int from = record.readInt();
+            int count = record.readInt();
+            ids.subList(from, from + count).clear();
+            break;
+         }
+         case INSERT: {
+            int to = record.readInt();
+            int count = record.readInt();
+            ArrayList<String> inserted = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+               inserted.add(record.readString());
+            }
+            ids.addAll(to, inserted);
+            break;
+         }
+         case TRIM:
+            ids.subList(record.readInt(), ids.size()).clear();
+            break;
+         case META:
+            meta = (HashMap<String, Object>) kryo.readClassAndObject(record);
+            break;
+      }
+   }
+
+   /**
+    * Appends the records turning the journaled state into the given one
+    * @param kryo
+    * @param buffer in memory output records get framed in
+    * @param output gets attached to the journal file
+    * @param newIds
+    * @param newMeta
+    * @return number of records written
+    */
+   int append(Kryo kryo, Output buffer, Output output, ArrayList<String> newIds, HashMap<String, Object> newMeta) throws IOException {
+      ListDiff diff = ListDiff.compute(ids, newIds);
+      boolean metaChanged = meta == null ? newMeta != null : !meta.equals(newMeta);
+      if (diff.isEmpty() && !metaChanged)
+         return 0;
+
+      ArrayList<ListDiff.Change> removals = new ArrayList<ListDiff.Change>();
+      ArrayList<ListDiff.Change> insertions = new ArrayList<ListDiff.Change>();
+      for (ListDiff.Change change : diff.changes) {
+         if (!change.type.equals(ListDiff.INSERT))
+            removals.add(change);
+         if (!change.type.equals(ListDiff.REMOVE))
+            insertions.add(change);
+      }
+      Collections.sort(removals, new Comparator<ListDiff.Change>() {
+         @Override public int compare(ListDiff.Change lhs, ListDiff.Change rhs) {
+            return rhs.from - lhs.from;
+         }
+      });
+      Collections.sort(insertions, new Comparator<ListDiff.Change>() {
+         @Override public int compare(ListDiff.Change lhs, ListDiff.Change rhs) {
+            return lhs.to - rhs.to;
+         }
+      });
+
+      boolean created = !file.exists() || file.length() == 0;
+      output.setOutputStream(new FileOutputStream(file, !created));
+      int records = 0;
+      try {
+         if (created) {
+            output.writeLong(generation);
+         }
+         int count = ids.size();
+         for (ListDiff.Change removal : removals) {
+            buffer.clear();
+            if (removal.from + removal.count() == count) {
+               buffer.writeByte(TRIM);
+               buffer.writeInt(removal.from);
+            } else {
+               buffer.writeByte(REMOVE);
+               buffer.writeInt(removal.from);
+               buffer.writeInt(removal.count());
+            }
+            count -= removal.count();
+            frame(buffer, output);
+            records++;
+         }
+         for (ListDiff.Change insertion : insertions) {
+            buffer.clear();
+            buffer.writeByte(INSERT);
+            buffer.writeInt(insertion.to);
+            buffer.writeInt(insertion.count());
+            for (String id : insertion.ids) {
+               buffer.writeString(id);
+            }
+            frame(buffer, output);
+            records++;
+         }
+         if (metaChanged) {
+            buffer.clear();
+            buffer.writeByte(META);
+            kryo.writeClassAndObject(buffer, newMeta);
+            frame(buffer, output);
+            records++;
+         }
+      } finally {
+         output.close();
+         output.setOutputStream(null);
+      }
+      size = file.length();
+      ids = newIds;
+      meta = newMeta == null ? null : new HashMap<String, Object>(newMeta);
+      return records;
+   }
+
+   private static void frame(Output buffer, Output output) {
+      CRC32 crc32 = new CRC32();
+      crc32.update(buffer.getBuffer(), 0, buffer.position());
+      output.writeInt(buffer.position());
+      output.writeInt((int) crc32.getValue());
+      output.writeBytes(buffer.getBuffer(), 0, buffer.position());
+   }
+
+   /**
+    * @return true if replaying the journal costs more than reading a fresh snapshot
+    */
+   boolean needsCompaction() {
+      return !compacting && size >= MIN_COMPACTION_SIZE && size > snapshotSize;
+   }
+
+   /**
+    * Starts over after the state got written to a snapshot of the next generation
+    * @param snapshotSize
+    */
+   void compacted(long snapshotSize) {
+      file.delete();
+      this.size = 0;
+      this.snapshotSize = snapshotSize;
+   }
+}
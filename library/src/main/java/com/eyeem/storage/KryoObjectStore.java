@@ -0,0 +1,270 @@
+package com.eyeem.storage;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Objects of all the lists of a storage class, each one saved once no matter
+ * how many lists it's in. Records get appended, newest record of an id wins:
+ * <pre>
+ * [id: string][crc: int][length: int][object: length bytes]
+ * </pre>
+ * The crc of the serialized object tells whether it needs to be written again.
+ * Callers synchronize on the store.
+ */
+class KryoObjectStore {
+
+   /**
+    * Size superseded records have to take before they're compacted away
+    */
+   static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+   private static class Entry {
+      final long offset;
+      final int size;
+      final int crc;
+
+      Entry(long offset, int size, int crc) {
+         this.offset = offset;
+         this.size = size;
+         this.crc = crc;
+      }
+   }
+
+   private static final Comparator<Map.Entry<String, Entry>> BY_OFFSET = new Comparator<Map.Entry<String, Entry>>() {
+      @Override public int compare(Map.Entry<String, Entry> lhs, Map.Entry<String, Entry> rhs) {
+         return lhs.getValue().offset < rhs.getValue().offset ? -1 : (lhs.getValue().offset == rhs.getValue().offset ? 0 : 1);
+      }
+   };
+
+   final File file;
+   private HashMap<String, Entry> entries;
+   private long length;
+   private long dead;
+
+   KryoObjectStore(File file) {
+      this.file = file;
+   }
+
+   /**
+    * Reads record headers unless that's done already. A record cut short
+    * by a crash gets truncated.
+    */
+   private void open(Input input) throws IOException {
+      if (entries != null)
+         return;
+      entries = new HashMap<String, Entry>();
+      length = 0;
+      dead = 0;
+      if (!file.exists())
+         return;
+      long fileLength = file.length();
+      FileInputStream stream = new FileInputStream(file);
+      try {
+         input.setInputStream(stream);
+         while (length < fileLength) {
+            String id;
+            int crc;
+            int size;
+            try {
+               id = input.readString();
+               crc = input.readInt();
+               size = input.readInt();
+            } catch (KryoException e) {
+               break;
+            }
+            long end = input.total() + size;
+            if (size < 0 || end > fileLength)
+               break;
+            input.skip(size);
+            put(id, new Entry(length, (int) (end - length), crc));
+            length = end;
+         }
+      } finally {
+         input.setInputStream(null);
+         stream.close();
+      }
+      if (length < fileLength) {
+         RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         try {
+            raf.setLength(length);
+         } finally {
+            raf.close();
+         }
+      }
+   }
+
+   private void put(String id, Entry entry) {
+      Entry previous = entries.put(id, entry);
+      if (previous != null) {
+         dead += previous.size;
+      }
+   }
+
+   /**
+    * @param input used when the store is opened
+    * @param id
+    * @return true if the store has a record of the id
+    */
+   boolean contains(Input input, String id) throws IOException {
+      open(input);
+      return entries.containsKey(id);
+   }
+
+   /**
+    * Appends objects that are new or serialize differently than their stored copy
+    * @param kryo
+    * @param input used when the store is opened
+    * @param buffer in memory output objects get serialized to
+    * @param output gets attached to the store's file
+    * @param ids
+    * @param objects
+    * @return number of objects written
+    */
+   int write(Kryo kryo, Input input, Output buffer, Output output, java.util.List<String> ids, java.util.List objects) throws IOException {
+      open(input);
+      CRC32 crc32 = new CRC32();
+      int written = 0;
+      output.setOutputStream(new FileOutputStream(file, true));
+      try {
+         for (int i = 0; i < objects.size(); i++) {
+            String id = ids.get(i);
+            buffer.clear();
+            kryo.writeClassAndObject(buffer, objects.get(i));
+            crc32.reset();
+            crc32.update(buffer.getBuffer(), 0, buffer.position());
+            int crc = (int) crc32.getValue();
+            Entry entry = entries.get(id);
+            if (entry != null && entry.crc == crc)
+               continue;
+            long offset = length + output.total();
+            output.writeString(id);
+            output.writeInt(crc);
+            output.writeInt(buffer.position());
+            output.writeBytes(buffer.getBuffer(), 0, buffer.position());
+            put(id, new Entry(offset, (int) (length + output.total() - offset), crc));
+            written++;
+         }
+      } finally {
+         length += output.total();
+         output.close();
+         output.setOutputStream(null);
+      }
+      return written;
+   }
+
+   /**
+    * @param kryo
+    * @param input
+    * @param ids
+    * @return stored objects by id, missing ones are left out
+    */
+   HashMap<String, Object> read(Kryo kryo, Input input, Collection<String> ids) throws IOException {
+      open(input);
+      HashMap<String, Object> result = new HashMap<String, Object>(ids.size() * 2);
+      ArrayList<Map.Entry<String, Entry>> wanted = new ArrayList<Map.Entry<String, Entry>>(ids.size());
+      HashMap<String, Entry> selected = new HashMap<String, Entry>(ids.size() * 2);
+      for (String id : ids) {
+         Entry entry = entries.get(id);
+         if (entry != null) {
+            selected.put(id, entry);
+         }
+      }
+      if (selected.isEmpty())
+         return result;
+      wanted.addAll(selected.entrySet());
+      Collections.sort(wanted, BY_OFFSET);
+
+      // reading in file order, seeking only over gaps
+      FileInputStream stream = new FileInputStream(file);
+      try {
+         long position = -1;
+         for (Map.Entry<String, Entry> e : wanted) {
+            Entry entry = e.getValue();
+            if (entry.offset != position) {
+               stream.getChannel().position(entry.offset);
+               input.setInputStream(stream);
+            }
+            input.readString();
+            input.readInt();
+            input.readInt();
+            result.put(e.getKey(), kryo.readClassAndObject(input));
+            position = entry.offset + entry.size;
+         }
+      } finally {
+         input.setInputStream(null);
+         stream.close();
+      }
+      return result;
+   }
+
+   /**
+    * @return true if superseded records take more space than the ones in use
+    */
+   boolean needsCompaction() {
+      return entries != null && dead >= MIN_COMPACTION_SIZE && dead > length - dead;
+   }
+
+   /**
+    * Rewrites the store keeping only the newest records of referenced ids
+    * @param input
+    * @param output
+    * @param referenced ids any of the saved lists still has
+    */
+   void compact(Input input, Output output, Set<String> referenced) throws IOException {
+      open(input);
+      ArrayList<Map.Entry<String, Entry>> kept = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+      Iterator<Map.Entry<String, Entry>> it = kept.iterator();
+      while (it.hasNext()) {
+         if (!referenced.contains(it.next().getKey()))
+            it.remove();
+      }
+      Collections.sort(kept, BY_OFFSET);
+
+      File compacted = new File(file.getPath() + ".tmp");
+      HashMap<String, Entry> moved = new HashMap<String, Entry>(kept.size() * 2);
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      byte[] bytes = new byte[4096];
+      output.setOutputStream(new FileOutputStream(compacted));
+      try {
+         for (Map.Entry<String, Entry> e : kept) {
+            Entry entry = e.getValue();
+            if (bytes.length < entry.size) {
+               bytes = new byte[entry.size];
+            }
+            raf.seek(entry.offset);
+            raf.readFully(bytes, 0, entry.size);
+            moved.put(e.getKey(), new Entry(output.total(), entry.size, entry.crc));
+            output.writeBytes(bytes, 0, entry.size);
+         }
+      } finally {
+         raf.close();
+         output.close();
+         output.setOutputStream(null);
+      }
+      if (!compacted.renameTo(file)) {
+         compacted.delete();
+         throw new IOException("Couldn't replace " + file);
+      }
+      entries = moved;
+      length = file.length();
+      dead = 0;
+   }
+}
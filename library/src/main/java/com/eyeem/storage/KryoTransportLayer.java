@@ -11,59 +11,171 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectStreamClass;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by vishna on 01/10/14.
  */
-public class KryoTransportLayer implements Storage.TransportLayer {
+public class KryoTransportLayer implements Storage.LazyTransportLayer {
+
+   /**
+    * Number of idle Kryo instances kept around per storage class
+    */
+   public static final int POOL_SIZE = 4;
+   /**
+    * Number of items decoded & added to a list at once while loading
+    */
+   public static final int LOAD_CHUNK_SIZE = 64;
+   private static final int BUFFER_SIZE = 8 * 1024;
+   private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+   /**
+    * Directory of the object store, journals & temporary files, next to the
+    * lists' one so that no list name can clash with them
+    */
+   private static final String STORE_DIR = "store-";
+   private static final String STORE_NAME = "objects";
+   private static final String JOURNAL = ".journal";
+   private static final String TMP = ".tmp";
 
    private Context context;
+   private final ConcurrentHashMap<Class, ArrayBlockingQueue<Instance>> pool = new ConcurrentHashMap<Class, ArrayBlockingQueue<Instance>>();
+   private final ConcurrentHashMap<String, KryoObjectStore> stores = new ConcurrentHashMap<String, KryoObjectStore>();
+   private final ConcurrentHashMap<String, KryoJournal> journals = new ConcurrentHashMap<String, KryoJournal>();
+   private volatile boolean journaling;
 
    public KryoTransportLayer(Context context) {
       this.context = context.getApplicationContext();
    }
 
+   /**
+    * In journal mode saves append a list's changes to a {@link KryoJournal}
+    * instead of rewriting its file, which gets compacted in the background
+    * once replaying it costs more than reading the list's file.
+    * @param journaling
+    */
+   public void setJournaling(boolean journaling) {
+      this.journaling = journaling;
+   }
+
+   /**
+    * Writes the list's ids & meta, its objects go to the storage class'
+    * {@link KryoObjectStore}. Only objects stored or updated since they were
+    * last saved, or missing from the store, get serialized.
+    */
    public boolean saveSync(Storage.List list, int limit) {
       Class klazz = null;
+      Instance instance = null;
       try {
          klazz = list.getStorage().classname();
-         File dir = new File(dirname(klazz));
-         dir.mkdirs();
-         Kryo kyro = new Kryo();
-         Output output;
-         HashMap<String, Object> data = new HashMap<String, Object>();
-         data.put("list", list.toArrayList(limit));
-         data.put("meta", list.meta);
-         output = new Output(new FileOutputStream(filename(list)));
-         kyro.writeObject(output, data);
-         output.close();
+         Storage storage = list.getStorage();
+         new File(dirname(klazz)).mkdirs();
+         new File(storeDir(klazz)).mkdirs();
+         instance = obtain(klazz);
+         Kryo kyro = instance.kryo;
+
+         String filename = filename(list);
+         KryoObjectStore store = store(klazz);
+         synchronized (store) {
+            ArrayList<String> ids = new ArrayList<String>();
+            ArrayList<String> changedIds = new ArrayList<String>();
+            ArrayList changed = new ArrayList();
+            int count = limit;
+            for (String id : (java.util.List<String>) list.ids()) {
+               boolean stored = store.contains(instance.input, id);
+               if (storage.takeUnsaved(id) || !stored) {
+                  Object object = storage.peek(id);
+                  if (object != null) {
+                     changedIds.add(id);
+                     changed.add(object);
+                  } else if (!stored) {
+                     continue;
+                  }
+               }
+               ids.add(id);
+               if (--count < 0)
+                  break;
+            }
+            try {
+               store.write(kyro, instance.input, instance.buffer, instance.output, changedIds, changed);
+            } catch (IOException e) {
+               for (String id : changedIds) {
+                  storage.markUnsaved(id);
+               }
+               throw e;
+            }
+            KryoJournal journal = journaling ? journal(instance, klazz, filename) : journals.remove(filename);
+            if (journaling && journal != null) {
+               journal.append(kyro, instance.buffer, instance.output, ids, list.meta);
+               if (journal.needsCompaction()) {
+                  compactLater(storage, klazz, filename, journal);
+               }
+            } else {
+               long generation = journal == null ? System.currentTimeMillis() : journal.generation + 1;
+               long size = writeSnapshot(instance, klazz, filename, ids, list.meta, generation);
+               sidecar(klazz, filename, JOURNAL).delete();
+               if (journaling) {
+                  HashMap<String, Object> meta = list.meta == null ? null : new HashMap<String, Object>(list.meta);
+                  journals.put(filename, new KryoJournal(sidecar(klazz, filename, JOURNAL), generation, ids, meta, size));
+               }
+            }
+            if (store.needsCompaction()) {
+               store.compact(instance.input, instance.output, savedIds(instance, klazz));
+            }
+         }
          return true;
       } catch (Throwable e) {
          if (klazz != null) Log.e(klazz.getSimpleName(), "save() error", e);
          return false;
+      } finally {
+         recycle(klazz, instance);
       }
    }
 
    public boolean loadSync(Storage.List storageList) {
-      Kryo kyro = new Kryo();
       Storage storage = storageList.getStorage();
       Class klazz = storage.classname();
+      Instance instance = obtain(klazz);
       try {
-         Input input = new Input(new FileInputStream(filename(storageList)));
-         HashMap<String, Object> data = kyro.readObject(input, HashMap.class);
+         HashMap<String, Object> data = readList(instance, klazz, filename(storageList));
          ArrayList list = (ArrayList)data.get("list");
-         input.close();
+         ArrayList<String> ids = (ArrayList<String>) data.get("ids");
+         int count = list != null ? list.size() : ids.size();
+
+         // the first chunk gets committed on its own so that it can be shown
+         // while the rest is decoded into a second transaction, subscribers
+         // only ever see the list change through commits
          Storage.List transaction = storageList.transaction();
          transaction.meta = (HashMap<String, Object>)data.get("meta");
-         // don't add objects that already exist in cache as they're most likely fresher
-         for (Object loadedObject : list) {
-            Object storedObject = storage.get(storage.id(loadedObject));
-            transaction.add(storedObject != null ? storedObject : loadedObject);
+         Storage.List target = transaction;
+         for (int from = 0; from < count || target == transaction; from += LOAD_CHUNK_SIZE) {
+            int to = Math.min(count, from + LOAD_CHUNK_SIZE);
+            java.util.List chunk;
+            if (list != null) {
+               chunk = list.subList(from, to);
+            } else {
+               chunk = readStored(instance, storage, ids.subList(from, to), true);
+            }
+            target.appendLoaded(chunk);
+            if (target == transaction) {
+               transaction.sortSelf(transaction.getComparator());
+               if (to >= count) {
+                  transaction.commit(new Storage.Subscription.Action(Storage.Subscription.LOADED));
+                  return true;
+               }
+               transaction.commit(new Storage.Subscription.Action(Storage.Subscription.LOADED).param("partial", true));
+               target = storageList.transaction();
+            }
          }
-         transaction.commit(new Storage.Subscription.Action(Storage.Subscription.LOADED));
+         target.sortSelf(target.getComparator());
+         target.commit(new Storage.Subscription.Action(Storage.Subscription.LOADED));
          return true;
       } catch (FileNotFoundException e) {
          // clean up
@@ -71,11 +183,293 @@ public class KryoTransportLayer implements Storage.TransportLayer {
          Log.w(klazz.getSimpleName(), "load() error: file " + filename(storageList) + " missing");
       } catch (Throwable e) {
          Log.e(klazz.getSimpleName(), "load() error", e);
+      } finally {
+         recycle(klazz, instance);
       }
       storageList.publish(new Storage.Subscription.Action(Storage.Subscription.LOADED)); // prolly should be other thing
       return false;
    }
 
+   @Override public boolean loadIdsSync(Storage.List storageList) {
+      Class klazz = storageList.getStorage().classname();
+      Instance instance = obtain(klazz);
+      try {
+         HashMap<String, Object> data = readList(instance, klazz, filename(storageList));
+         if (data.get("ids") == null) {
+            // saved in the old format, no way to get ids only
+            return loadSync(storageList);
+         }
+         ArrayList<String> ids = (ArrayList<String>) data.get("ids");
+         storageList.restore(ids, (HashMap<String, Object>) data.get("meta"));
+         return true;
+      } catch (FileNotFoundException e) {
+         deleteFilesRecursively(getBaseDir(klazz), klazz);
+         Log.w(klazz.getSimpleName(), "load() error: file " + filename(storageList) + " missing");
+      } catch (Throwable e) {
+         Log.e(klazz.getSimpleName(), "load() error", e);
+      } finally {
+         recycle(klazz, instance);
+      }
+      storageList.publish(new Storage.Subscription.Action(Storage.Subscription.LOADED));
+      return false;
+   }
+
+   @Override public java.util.List fetchSync(Storage.List storageList, java.util.List<String> ids) {
+      Class klazz = storageList.getStorage().classname();
+      Instance instance = obtain(klazz);
+      try {
+         return readStored(instance, storageList.getStorage(), ids, false);
+      } catch (Throwable e) {
+         Log.e(klazz.getSimpleName(), "fetch() error", e);
+      } finally {
+         recycle(klazz, instance);
+      }
+      return new ArrayList();
+   }
+
+   /**
+    * Kryo with its buffers, used by one thread at a time
+    */
+   private static class Instance {
+      final Kryo kryo;
+      final Output output = new Output(BUFFER_SIZE, -1);
+      final Output buffer = new Output(BUFFER_SIZE, -1);
+      final Input input = new Input(BUFFER_SIZE);
+
+      Instance(Kryo kryo) {
+         this.kryo = kryo;
+      }
+
+      Output output(java.io.OutputStream stream) {
+         output.setOutputStream(stream);
+         return output;
+      }
+
+      Input input(java.io.InputStream stream) {
+         input.setInputStream(stream);
+         return input;
+      }
+   }
+
+   private Instance obtain(Class klazz) {
+      ArrayBlockingQueue<Instance> queue = pool.get(klazz);
+      Instance instance = queue == null ? null : queue.poll();
+      if (instance != null)
+         return instance;
+      Kryo kryo = new Kryo();
+      register(kryo, klazz);
+      return new Instance(kryo);
+   }
+
+   private void recycle(Class klazz, Instance instance) {
+      if (klazz == null || instance == null)
+         return;
+      instance.output.setOutputStream(null);
+      instance.input.setInputStream(null);
+      // don't hold on to buffers grown by a huge list
+      if (instance.output.getBuffer().length > MAX_POOLED_BUFFER_SIZE
+         || instance.buffer.getBuffer().length > MAX_POOLED_BUFFER_SIZE
+         || instance.input.getBuffer().length > MAX_POOLED_BUFFER_SIZE)
+         return;
+      ArrayBlockingQueue<Instance> queue = pool.get(klazz);
+      if (queue == null) {
+         queue = new ArrayBlockingQueue<Instance>(POOL_SIZE);
+         ArrayBlockingQueue<Instance> existing = pool.putIfAbsent(klazz, queue);
+         if (existing != null) queue = existing;
+      }
+      queue.offer(instance);
+   }
+
+   /**
+    * Registers classes written with the storage's items so that they're
+    * saved as ids rather than names. Registration order makes up the format,
+    * only ever append to it. Files saved with unregistered classes still load.
+    * @param kryo
+    * @param klazz storage's {@link Storage#classname()}
+    */
+   protected void register(Kryo kryo, Class klazz) {
+      kryo.register(ArrayList.class);
+      kryo.register(HashMap.class);
+      kryo.register(HashSet.class);
+      kryo.register(LinkedHashMap.class);
+      kryo.register(long[].class);
+      kryo.register(int[].class);
+      kryo.register(String[].class);
+      kryo.register(klazz);
+   }
+
+   private KryoObjectStore store(Class klazz) {
+      String filename = storeDir(klazz) + STORE_NAME;
+      KryoObjectStore store = stores.get(filename);
+      if (store == null) {
+         store = new KryoObjectStore(new File(filename));
+         KryoObjectStore existing = stores.putIfAbsent(filename, store);
+         if (existing != null) store = existing;
+      }
+      return store;
+   }
+
+   /**
+    * @param instance
+    * @param storage
+    * @param ids
+    * @param skipCached use objects the storage has in its cache rather than reading them
+    * @return objects in order of the ids, ones that can't be found left out
+    */
+   private ArrayList readStored(Instance instance, Storage storage, java.util.List<String> ids, boolean skipCached) throws IOException {
+      ArrayList<String> missing = new ArrayList<String>(ids.size());
+      for (String id : ids) {
+         if (!skipCached || !storage.contains(id)) {
+            missing.add(id);
+         }
+      }
+      KryoObjectStore store = store(storage.classname());
+      HashMap<String, Object> stored;
+      synchronized (store) {
+         stored = store.read(instance.kryo, instance.input, missing);
+      }
+      ArrayList result = new ArrayList(ids.size());
+      for (String id : ids) {
+         Object object = stored.get(id);
+         if (object == null && skipCached) {
+            object = storage.get(id);
+         }
+         if (object != null) {
+            result.add(object);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * @return ids of all the lists saved for the class
+    */
+   private HashSet<String> savedIds(Instance instance, Class klazz) throws IOException {
+      HashSet<String> ids = new HashSet<String>();
+      String[] names = new File(dirname(klazz)).list();
+      if (names == null)
+         return ids;
+      for (String name : names) {
+         HashMap<String, Object> data;
+         try {
+            data = readList(instance, klazz, dirname(klazz) + name);
+         } catch (RuntimeException e) {
+            // not a list, nothing can load it either
+            Log.w(klazz.getSimpleName(), "compact() skipping " + name, e);
+            continue;
+         }
+         ArrayList<String> listIds = (ArrayList<String>) data.get("ids");
+         if (listIds != null) {
+            ids.addAll(listIds);
+         }
+      }
+      return ids;
+   }
+
+   /**
+    * Reads a list's file, replaying its journal if there's any
+    * @return list's data, "ids" & "meta" as of the last save
+    */
+   private HashMap<String, Object> readList(Instance instance, Class klazz, String filename) throws IOException {
+      KryoJournal journal = journals.get(filename);
+      if (journal == null && !sidecar(klazz, filename, JOURNAL).exists()) {
+         return readSnapshot(instance, filename);
+      }
+      synchronized (store(klazz)) {
+         journal = journal(instance, klazz, filename);
+         if (journal == null)
+            return readSnapshot(instance, filename);
+         HashMap<String, Object> data = new HashMap<String, Object>();
+         data.put("ids", new ArrayList<String>(journal.ids));
+         data.put("meta", journal.meta == null ? null : new HashMap<String, Object>(journal.meta));
+         data.put("generation", journal.generation);
+         return data;
+      }
+   }
+
+   private HashMap<String, Object> readSnapshot(Instance instance, String filename) throws IOException {
+      Input input = instance.input(new FileInputStream(filename));
+      try {
+         return instance.kryo.readObject(input, HashMap.class);
+      } finally {
+         input.close();
+      }
+   }
+
+   /**
+    * @return journal of the list, null if it's got no file yet or one
+    * saved in a format without a journal. Callers hold the store's lock.
+    */
+   private KryoJournal journal(Instance instance, Class klazz, String filename) throws IOException {
+      KryoJournal journal = journals.get(filename);
+      if (journal != null)
+         return journal;
+      File file = new File(filename);
+      if (!file.exists())
+         return null;
+      HashMap<String, Object> data = readSnapshot(instance, filename);
+      ArrayList<String> ids = (ArrayList<String>) data.get("ids");
+      if (ids == null)
+         return null;
+      Long generation = (Long) data.get("generation");
+      journal = new KryoJournal(sidecar(klazz, filename, JOURNAL), generation == null ? 0 : generation,
+         ids, (HashMap<String, Object>) data.get("meta"), file.length());
+      journal.replay(instance.kryo, instance.input);
+      journals.put(filename, journal);
+      return journal;
+   }
+
+   /**
+    * Replaces the list's file with the given state
+    * @return size of the file
+    */
+   private long writeSnapshot(Instance instance, Class klazz, String filename, ArrayList<String> ids, HashMap<String, Object> meta, long generation) throws IOException {
+      HashMap<String, Object> data = new HashMap<String, Object>();
+      data.put("ids", ids);
+      data.put("meta", meta);
+      data.put("generation", generation);
+      File tmp = sidecar(klazz, filename, TMP);
+      Output output = instance.output(new FileOutputStream(tmp));
+      instance.kryo.writeObject(output, data);
+      output.close();
+      File file = new File(filename);
+      if (!tmp.renameTo(file)) {
+         tmp.delete();
+         throw new IOException("Couldn't replace " + filename);
+      }
+      return file.length();
+   }
+
+   /**
+    * Writes the journaled state to a snapshot of the next generation on
+    * the storage's {@link PersistenceScheduler}
+    */
+   private void compactLater(Storage storage, final Class klazz, final String filename, final KryoJournal journal) {
+      journal.compacting = true;
+      storage.persistence().submit(new Callable<Boolean>() {
+         @Override public Boolean call() {
+            Instance instance = obtain(klazz);
+            try {
+               synchronized (store(klazz)) {
+                  if (journals.get(filename) != journal)
+                     return false;
+                  long generation = journal.generation + 1;
+                  long size = writeSnapshot(instance, klazz, filename, journal.ids, journal.meta, generation);
+                  journal.generation = generation;
+                  journal.compacted(size);
+                  return true;
+               }
+            } catch (Throwable e) {
+               Log.e(klazz.getSimpleName(), "compact() error", e);
+               return false;
+            } finally {
+               journal.compacting = false;
+               recycle(klazz, instance);
+            }
+         }
+      });
+   }
+
    private String getBaseDir(Class klass) {
       return context.getCacheDir() + File.separator + klass.getSimpleName() + File.separator;
    }
@@ -84,6 +478,18 @@ public class KryoTransportLayer implements Storage.TransportLayer {
       return getBaseDir(klass) + getSerialVersionUID(klass) + File.separator;
    }
 
+   private String storeDir(Class klass) {
+      // named after the serial version too so that cleanups keep it
+      return getBaseDir(klass) + STORE_DIR + getSerialVersionUID(klass) + File.separator;
+   }
+
+   /**
+    * @return file in the store's directory belonging to the list file
+    */
+   private File sidecar(Class klazz, String filename, String suffix) {
+      return new File(storeDir(klazz) + filename.substring(dirname(klazz).length()) + suffix);
+   }
+
    private String filename(Storage.List list) {
       return dirname(list.getStorage().classname()) + list.getName();
    }
@@ -0,0 +1,178 @@
+package com.eyeem.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Edit script between two id arrays of a {@link Storage.List}. Removals
+ * refer to positions in the old array, insertions to positions in the new
+ * one and moves give both. Applying removals last to first and then
+ * insertions first to last (a move being a removal plus an insertion)
+ * turns the old array into the new one, see {@link #apply(List)}.
+ *
+ * <p>
+ * Ids are matched through a hash map in O(n+m), moves are the matched
+ * ids outside the longest increasing run of old positions. Finding that
+ * run takes O(k log k) for k matched ids, so a diff costs O(n+m+k log k),
+ * O(n log n) at worst.
+ */
+public class ListDiff {
+
+   public final static String INSERT = "insert";
+   public final static String REMOVE = "remove";
+   public final static String MOVE = "move";
+
+   public static class Change {
+      public final String type;
+      /** position in the old array, -1 for insertions */
+      public final int from;
+      /** position in the new array, -1 for removals */
+      public final int to;
+      public final ArrayList<String> ids = new ArrayList<String>();
+
+      Change(String type, int from, int to) {
+         this.type = type;
+         this.from = from;
+         this.to = to;
+      }
+
+      public int count() {
+         return ids.size();
+      }
+
+      @Override public String toString() {
+         return type + "(" + from + "->" + to + ")" + ids;
+      }
+   }
+
+   public final ArrayList<Change> changes = new ArrayList<Change>();
+
+   public boolean isEmpty() {
+      return changes.isEmpty();
+   }
+
+   public static ListDiff compute(List<String> oldIds, List<String> newIds) {
+      ListDiff diff = new ListDiff();
+      int n = oldIds.size();
+      int m = newIds.size();
+
+      // match n-th occurrence in the new array with the n-th one in the old array
+      HashMap<String, LinkedList<Integer>> oldPositions = new HashMap<String, LinkedList<Integer>>(n * 2);
+      for (int i = 0; i < n; i++) {
+         String id = oldIds.get(i);
+         LinkedList<Integer> positions = oldPositions.get(id);
+         if (positions == null) {
+            positions = new LinkedList<Integer>();
+            oldPositions.put(id, positions);
+         }
+         positions.add(i);
+      }
+      int[] matched = new int[m];
+      boolean[] kept = new boolean[n];
+      for (int j = 0; j < m; j++) {
+         LinkedList<Integer> positions = oldPositions.get(newIds.get(j));
+         Integer i = positions == null ? null : positions.poll();
+         matched[j] = i == null ? -1 : i;
+         if (i != null) kept[i] = true;
+      }
+      boolean[] stable = longestIncreasingRun(matched);
+
+      Change last = null;
+      for (int i = 0; i < n; i++) {
+         if (kept[i])
+            continue;
+         if (last != null && last.from + last.count() == i) {
+            last.ids.add(oldIds.get(i));
+         } else {
+            last = new Change(REMOVE, i, -1);
+            last.ids.add(oldIds.get(i));
+            diff.changes.add(last);
+         }
+      }
+      last = null;
+      for (int j = 0; j < m; j++) {
+         if (stable[j])
+            continue;
+         String type = matched[j] < 0 ? INSERT : MOVE;
+         if (last != null && last.type.equals(type) && last.to + last.count() == j
+            && (type.equals(INSERT) || last.from + last.count() == matched[j])) {
+            last.ids.add(newIds.get(j));
+         } else {
+            last = new Change(type, matched[j], j);
+            last.ids.add(newIds.get(j));
+            diff.changes.add(last);
+         }
+      }
+      return diff;
+   }
+
+   /**
+    * Applies the edit script to the old array
+    * @param oldIds
+    * @return new array
+    */
+   public ArrayList<String> apply(List<String> oldIds) {
+      ArrayList<String> result = new ArrayList<String>(oldIds);
+      ArrayList<int[]> removals = new ArrayList<int[]>();
+      ArrayList<Change> insertions = new ArrayList<Change>();
+      for (Change change : changes) {
+         if (!change.type.equals(INSERT))
+            removals.add(new int[]{change.from, change.count()});
+         if (!change.type.equals(REMOVE))
+            insertions.add(change);
+      }
+      Collections.sort(removals, new java.util.Comparator<int[]>() {
+         @Override public int compare(int[] lhs, int[] rhs) {
+            return rhs[0] - lhs[0];
+         }
+      });
+      for (int[] removal : removals) {
+         result.subList(removal[0], removal[0] + removal[1]).clear();
+      }
+      Collections.sort(insertions, new java.util.Comparator<Change>() {
+         @Override public int compare(Change lhs, Change rhs) {
+            return lhs.to - rhs.to;
+         }
+      });
+      for (Change insertion : insertions) {
+         result.addAll(insertion.to, insertion.ids);
+      }
+      return result;
+   }
+
+   /**
+    * Marks matched positions forming the longest increasing run of old
+    * positions, these don't need to move.
+    */
+   private static boolean[] longestIncreasingRun(int[] matched) {
+      int m = matched.length;
+      int[] tails = new int[m];
+      int[] previous = new int[m];
+      int length = 0;
+      for (int j = 0; j < m; j++) {
+         if (matched[j] < 0)
+            continue;
+         int low = 0, high = length;
+         while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (matched[tails[mid]] < matched[j]) {
+               low = mid + 1;
+            } else {
+               high = mid;
+            }
+         }
+         previous[j] = low > 0 ? tails[low - 1] : -1;
+         tails[low] = j;
+         if (low == length)
+            length++;
+      }
+      boolean[] stable = new boolean[m];
+      for (int j = length > 0 ? tails[length - 1] : -1; j >= 0; j = previous[j]) {
+         stable[j] = true;
+      }
+      return stable;
+   }
+}
@@ -0,0 +1,134 @@
+package com.eyeem.storage;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map with primitive long keys, avoids boxing
+ * on lookups. Not thread safe.
+ */
+public class LongMap<V> {
+
+   private static final Object REMOVED = new Object();
+
+   private long[] keys;
+   private Object[] values;
+   private int size;
+   private int used;
+
+   public LongMap() {
+      this(16);
+   }
+
+   public LongMap(int capacity) {
+      int n = 8;
+      while (n < capacity * 2) n <<= 1;
+      keys = new long[n];
+      values = new Object[n];
+   }
+
+   private static int hash(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+   }
+
+   private int slot(long key) {
+      int mask = keys.length - 1;
+      int i = hash(key) & mask;
+      while (values[i] != null) {
+         if (values[i] != REMOVED && keys[i] == key)
+            return i;
+         i = (i + 1) & mask;
+      }
+      return -1;
+   }
+
+   /**
+    * @param key
+    * @return value for the key or null
+    */
+   @SuppressWarnings("unchecked")
+   public V get(long key) {
+      int i = slot(key);
+      return i < 0 ? null : (V) values[i];
+   }
+
+   public boolean containsKey(long key) {
+      return slot(key) >= 0;
+   }
+
+   /**
+    * @param key
+    * @param value non null value
+    * @return previous value or null
+    */
+   @SuppressWarnings("unchecked")
+   public V put(long key, V value) {
+      if (value == null)
+         throw new NullPointerException("null values aren't supported");
+      int i = slot(key);
+      if (i >= 0) {
+         V previous = (V) values[i];
+         values[i] = value;
+         return previous;
+      }
+      if ((used + 1) * 4 > keys.length * 3) {
+         rehash(size * 4 > keys.length ? keys.length * 2 : keys.length);
+      }
+      int mask = keys.length - 1;
+      i = hash(key) & mask;
+      while (values[i] != null && values[i] != REMOVED) {
+         i = (i + 1) & mask;
+      }
+      if (values[i] == null)
+         used++;
+      keys[i] = key;
+      values[i] = value;
+      size++;
+      return null;
+   }
+
+   /**
+    * @param key
+    * @return removed value or null
+    */
+   @SuppressWarnings("unchecked")
+   public V remove(long key) {
+      int i = slot(key);
+      if (i < 0)
+         return null;
+      V previous = (V) values[i];
+      values[i] = REMOVED;
+      size--;
+      return previous;
+   }
+
+   public int size() {
+      return size;
+   }
+
+   public void clear() {
+      Arrays.fill(values, null);
+      size = 0;
+      used = 0;
+   }
+
+   private void rehash(int capacity) {
+      long[] oldKeys = keys;
+      Object[] oldValues = values;
+      keys = new long[capacity];
+      values = new Object[capacity];
+      used = size;
+      int mask = capacity - 1;
+      for (int j = 0; j < oldKeys.length; j++) {
+         Object value = oldValues[j];
+         if (value == null || value == REMOVED)
+            continue;
+         int i = hash(oldKeys[j]) & mask;
+         while (values[i] != null) {
+            i = (i + 1) & mask;
+         }
+         keys[i] = oldKeys[j];
+         values[i] = value;
+      }
+   }
+}
@@ -0,0 +1,121 @@
+package com.eyeem.storage;
+
+import android.content.Context;
+
+/**
+ * {@link Storage} for items identified by a numeric id. Subclasses provide
+ * {@link #longId(Object)}, the String ids required by {@link Storage} are
+ * created once per id and looked up in a primitive keyed map afterwards.
+ * The map is split into stripes with a lock each so that lookups from
+ * several threads rarely wait on each other.
+ */
+public abstract class LongStorage<T> extends Storage<T> {
+
+   private static final int STRIPES = 16;
+
+   private final LongMap<String>[] names;
+
+   @SuppressWarnings("unchecked")
+   public LongStorage(Context context) {
+      super(context);
+      names = new LongMap[STRIPES];
+      for (int i = 0; i < STRIPES; i++) {
+         names[i] = new LongMap<String>();
+      }
+   }
+
+   private LongMap<String> stripe(long id) {
+      // top 4 bits of the mixed hash pick one of the 16 stripes
+      int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+      return names[h >>> 28];
+   }
+
+   /**
+    * Unique numeric item identifier
+    * @param object
+    * @return
+    */
+   public abstract long longId(T object);
+
+   @Override public final String id(T object) {
+      return id(longId(object));
+   }
+
+   /**
+    * @param id numeric id
+    * @return String id used by the storage for the given numeric one
+    */
+   public String id(long id) {
+      LongMap<String> stripe = stripe(id);
+      synchronized (stripe) {
+         String name = stripe.get(id);
+         if (name == null) {
+            name = idTable.intern(Long.toString(id));
+            stripe.put(id, name);
+         }
+         return name;
+      }
+   }
+
+   /**
+    * Unlike {@link #id(long)} doesn't keep anything for ids the storage
+    * hasn't seen, so lookups of unknown ids don't pile up
+    * @param id numeric id
+    * @return String id used by the storage for the given numeric one
+    */
+   String lookupId(long id) {
+      String name;
+      LongMap<String> stripe = stripe(id);
+      synchronized (stripe) {
+         name = stripe.get(id);
+      }
+      return name != null ? name : Long.toString(id);
+   }
+
+   @Override final String lookupId(T object) {
+      return lookupId(longId(object));
+   }
+
+   /**
+    * Gets item by its numeric id
+    * @param id
+    * @return
+    */
+   public T get(long id) {
+      return get(lookupId(id));
+   }
+
+   /**
+    * Checks if item with the given numeric id is in the storage
+    * @param id
+    * @return
+    */
+   public boolean contains(long id) {
+      return contains(lookupId(id));
+   }
+
+   /**
+    * @return number of numeric ids with a String id kept for them
+    */
+   int namesCount() {
+      int count = 0;
+      for (LongMap<String> stripe : names) {
+         synchronized (stripe) {
+            count += stripe.size();
+         }
+      }
+      return count;
+   }
+
+   @Override void released(String id) {
+      try {
+         long key = Long.parseLong(id);
+         LongMap<String> stripe = stripe(key);
+         synchronized (stripe) {
+            stripe.remove(key);
+         }
+      } catch (NumberFormatException e) {
+         // not one of ours
+      }
+   }
+}
@@ -0,0 +1,33 @@
+package com.eyeem.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts least recently used items first.
+ */
+public class LruEvictionPolicy implements Storage.EvictionPolicy {
+
+   private final LinkedHashMap<String, Boolean> order = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+
+   @Override public void onInsert(String id) {
+      order.put(id, Boolean.TRUE);
+   }
+
+   @Override public void onAccess(String id) {
+      // access ordered map moves the entry to the end
+      order.get(id);
+   }
+
+   @Override public void onRemove(String id) {
+      order.remove(id);
+   }
+
+   @Override public void clear() {
+      order.clear();
+   }
+
+   @Override public Iterator<String> candidates() {
+      return order.keySet().iterator();
+   }
+}
@@ -0,0 +1,176 @@
+package com.eyeem.storage;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link Storage.List} saves & loads on a single background thread,
+ * never on the caller's. Saves requested for a list while one is still
+ * waiting get merged into it, so at most one save per list is ever queued.
+ * A save waits for the debounce delay before it's queued so that bursts of
+ * changes end up in one write.
+ */
+public class PersistenceScheduler {
+
+   /**
+    * Default delay between a save request and the write
+    */
+   public static final long DEFAULT_SAVE_DELAY = 500;
+
+   private final ThreadPoolExecutor executor;
+   private final IdentityHashMap<Storage.List, Task> pendingSaves = new IdentityHashMap<Storage.List, Task>();
+   private volatile long saveDelay = DEFAULT_SAVE_DELAY;
+   private final AtomicInteger scheduled = new AtomicInteger();
+   private final AtomicLong completed = new AtomicLong();
+   private final AtomicLong merged = new AtomicLong();
+   private final AtomicLong totalLatency = new AtomicLong();
+   private final AtomicLong maxLatency = new AtomicLong();
+
+   public PersistenceScheduler() {
+      // unbounded so that queueing never blocks the scheduler thread or
+      // falls back to the caller, merged saves keep it short
+      executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+         new LinkedBlockingQueue<Runnable>(),
+         new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Storage persistence");
+               t.setDaemon(true);
+               t.setPriority(Thread.MIN_PRIORITY);
+               return t;
+            }
+         });
+   }
+
+   /**
+    * @param delay debounce delay in milliseconds, 0 queues saves right away
+    */
+   public void setSaveDelay(long delay) {
+      this.saveDelay = Math.max(0, delay);
+   }
+
+   /**
+    * Requests a save of the list, merged with a pending one if there's any.
+    * @param list
+    * @return future of the write that's going to include the list's current state
+    */
+   public Future<Boolean> save(final Storage.List list) {
+      final Task task;
+      synchronized (pendingSaves) {
+         Task pending = pendingSaves.get(list);
+         if (pending != null) {
+            merged.incrementAndGet();
+            return pending;
+         }
+         task = new Task(new Callable<Boolean>() {
+            @Override public Boolean call() throws Exception {
+               // from now on further saves need another write
+               synchronized (pendingSaves) {
+                  pendingSaves.remove(list);
+               }
+               return list.saveSync();
+            }
+         });
+         pendingSaves.put(list, task);
+      }
+      Runnable enqueue = new Runnable() {
+         @Override public void run() {
+            executor.execute(task);
+         }
+      };
+      long delay = saveDelay;
+      if (delay > 0) {
+         Storage.scheduler().schedule(enqueue, delay, TimeUnit.MILLISECONDS);
+      } else {
+         enqueue.run();
+      }
+      return task;
+   }
+
+   /**
+    * Queues the callable, loads use it
+    * @param callable
+    * @return
+    */
+   public Future<Boolean> submit(Callable<Boolean> callable) {
+      Task task = new Task(callable);
+      executor.execute(task);
+      return task;
+   }
+
+   /**
+    * Keeps the stats, they're updated before the result becomes visible
+    */
+   private class Task extends FutureTask<Boolean> {
+      final long requested = System.nanoTime();
+
+      Task(Callable<Boolean> callable) {
+         super(callable);
+         scheduled.incrementAndGet();
+      }
+
+      @Override protected void set(Boolean value) {
+         finished();
+         super.set(value);
+      }
+
+      @Override protected void setException(Throwable t) {
+         finished();
+         super.setException(t);
+      }
+
+      private void finished() {
+         long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requested);
+         totalLatency.addAndGet(latency);
+         long max;
+         while (latency > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, latency));
+         completed.incrementAndGet();
+         scheduled.decrementAndGet();
+      }
+   }
+
+   /**
+    * @return number of tasks requested but not finished yet, including debounced saves
+    */
+   public int queueDepth() {
+      return scheduled.get();
+   }
+
+   public long completedCount() {
+      return completed.get();
+   }
+
+   /**
+    * @return number of save requests merged into already pending ones
+    */
+   public long mergedCount() {
+      return merged.get();
+   }
+
+   /**
+    * @return average time in milliseconds between a request and the end of its task
+    */
+   public long averageLatency() {
+      long count = completed.get();
+      return count == 0 ? 0 : totalLatency.get() / count;
+   }
+
+   public long maxLatency() {
+      return maxLatency.get();
+   }
+
+   static Future<Boolean> completed(boolean value) {
+      FutureTask<Boolean> task = new FutureTask<Boolean>(new Runnable() {
+         @Override public void run() {}
+      }, value);
+      task.run();
+      return task;
+   }
+}
@@ -0,0 +1,108 @@
+package com.eyeem.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps keys extracted from items to the ids of the items having them.
+ * Hash indexes answer equality lookups, sorted ones also answer ranges.
+ */
+class SecondaryIndex<T> {
+
+   final Storage.ComparableKey<T> extractor;
+   final boolean sorted;
+   private final Map<Object, LinkedHashSet<String>> ids;
+   private final HashMap<String, Object> keys = new HashMap<String, Object>();
+
+   SecondaryIndex(Storage.ComparableKey<T> extractor, boolean sorted) {
+      this.extractor = extractor;
+      this.sorted = sorted;
+      this.ids = sorted ? new TreeMap<Object, LinkedHashSet<String>>() : new HashMap<Object, LinkedHashSet<String>>();
+   }
+
+   /**
+    * Indexes the item under its current key
+    * @param id
+    * @param object
+    */
+   synchronized void update(String id, T object) {
+      Object key = object == null ? null : extractor.key(object);
+      Object previous = keys.get(id);
+      if (key == null ? previous == null : key.equals(previous))
+         return;
+      if (previous != null) {
+         unlink(previous, id);
+      }
+      if (key == null) {
+         keys.remove(id);
+         return;
+      }
+      keys.put(id, key);
+      LinkedHashSet<String> keyIds = ids.get(key);
+      if (keyIds == null) {
+         keyIds = new LinkedHashSet<String>();
+         ids.put(key, keyIds);
+      }
+      keyIds.add(id);
+   }
+
+   synchronized void remove(String id) {
+      Object previous = keys.remove(id);
+      if (previous != null) {
+         unlink(previous, id);
+      }
+   }
+
+   synchronized void clear() {
+      ids.clear();
+      keys.clear();
+   }
+
+   private void unlink(Object key, String id) {
+      LinkedHashSet<String> keyIds = ids.get(key);
+      if (keyIds == null)
+         return;
+      keyIds.remove(id);
+      if (keyIds.isEmpty()) {
+         ids.remove(key);
+      }
+   }
+
+   /**
+    * @param key
+    * @return ids of items having the given key
+    */
+   synchronized ArrayList<String> get(Object key) {
+      LinkedHashSet<String> keyIds = key == null ? null : ids.get(key);
+      return keyIds == null ? new ArrayList<String>() : new ArrayList<String>(keyIds);
+   }
+
+   /**
+    * @param from lowest key included, null for no lower bound
+    * @param to highest key excluded, null for no upper bound
+    * @return ids of items with keys in range ordered by key
+    */
+   synchronized ArrayList<String> range(Comparable from, Comparable to) {
+      if (!sorted)
+         throw new UnsupportedOperationException("range lookups need a sorted index");
+      TreeMap<Object, LinkedHashSet<String>> tree = (TreeMap<Object, LinkedHashSet<String>>) ids;
+      Map<Object, LinkedHashSet<String>> range;
+      if (from == null && to == null) {
+         range = tree;
+      } else if (from == null) {
+         range = tree.headMap(to);
+      } else if (to == null) {
+         range = tree.tailMap(from);
+      } else {
+         range = tree.subMap(from, to);
+      }
+      ArrayList<String> result = new ArrayList<String>();
+      for (LinkedHashSet<String> keyIds : range.values()) {
+         result.addAll(keyIds);
+      }
+      return result;
+   }
+}
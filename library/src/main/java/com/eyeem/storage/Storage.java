@@ -1,6 +1,8 @@
 package com.eyeem.storage;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.reflect.Array;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -9,15 +11,32 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.ListIterator;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Observable storage for objects of type {@link T}. All objects
@@ -43,6 +62,25 @@ public abstract class Storage<T> {
 
    private static final String DOT = ".";
    private static TransportLayer DEFAULT_TRANSPORT_LAYER = null;
+   private static ScheduledExecutorService SCHEDULER = null;
+   private static Executor MAIN_THREAD = null;
+
+   /**
+    * Default delay between an item becoming unreferenced and its eviction
+    */
+   public static final long DEFAULT_EVICTION_DELAY = 1000;
+
+   /**
+    * Default list size from which {@link List#filterSelf(Query)} runs in parallel
+    */
+   public static final int DEFAULT_PARALLEL_FILTER_THRESHOLD = 4096;
+   private static final int FILTER_CHUNK_SIZE = 512;
+   /**
+    * Lookups a list answers by scanning before it indexes positions again
+    */
+   private static final int SCANS_BEFORE_INDEX = 2;
+   private static final int FILTER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+   private static ExecutorService FILTER_POOL = null;
 
    ConcurrentHashMap<String, T> cache;
    HashMap<String, WeakEqualReference<List>> lists;
@@ -52,6 +90,28 @@ public abstract class Storage<T> {
    Storage<T> storage;
    HashSet<String> persistentItems;
    CopyOnWriteArrayList<List> persistentLists;
+   HashMap<String, ArrayList<WeakEqualReference<List>>> listsById;
+   HashMap<String, Integer> refCounts;
+   HashSet<String> evictionCandidates;
+   LinkedHashMap<String, Boolean> unreferenced;
+   ReferenceQueue<List> collectedLists;
+   long evictionDelay = DEFAULT_EVICTION_DELAY;
+   boolean evictionScheduled;
+   long notificationWindow = -1;
+   Executor notificationExecutor;
+   int notificationQueueSize;
+   EvictionPolicy evictionPolicy;
+   IdTable idTable;
+   PersistenceScheduler persistence;
+   final ConcurrentHashMap<String, SecondaryIndex<T>> indexes = new ConcurrentHashMap<String, SecondaryIndex<T>>();
+   final ConcurrentHashMap<String, Aggregate<T>> aggregates = new ConcurrentHashMap<String, Aggregate<T>>();
+   /**
+    * Ids of items stored or updated since they were last saved
+    */
+   final ConcurrentHashMap<String, Boolean> unsaved = new ConcurrentHashMap<String, Boolean>();
+   final AtomicLong hitCount = new AtomicLong();
+   final AtomicLong missCount = new AtomicLong();
+   final AtomicLong evictionCount = new AtomicLong();
 
    int size;
 
@@ -70,6 +130,12 @@ public abstract class Storage<T> {
       transactions = new CopyOnWriteArrayList<WeakEqualReference<List>>();
       persistentItems = new HashSet<String>();
       persistentLists = new CopyOnWriteArrayList<List>();
+      listsById = new HashMap<String, ArrayList<WeakEqualReference<List>>>();
+      refCounts = new HashMap<String, Integer>();
+      evictionCandidates = new HashSet<String>();
+      unreferenced = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+      collectedLists = new ReferenceQueue<List>();
+      idTable = new IdTable();
       storage = this;
    }
 
@@ -84,9 +150,34 @@ public abstract class Storage<T> {
                list.clear();
             }
          }
+         for (WeakEqualReference<List> _transaction : transactions) {
+            ((ListReference) _transaction).releaseAll();
+         }
          cache.clear();
+         unsaved.clear();
+         for (SecondaryIndex<T> index : indexes.values()) {
+            index.clear();
+         }
+         for (Aggregate<T> aggregate : aggregates.values()) {
+            aggregate.clear();
+            aggregate.subscribers.updateAll(Subscription.CLEAR);
+         }
          transactions.clear();
          persistentItems.clear();
+         synchronized (listsById) {
+            listsById.clear();
+         }
+         synchronized (refCounts) {
+            refCounts.clear();
+            evictionCandidates.clear();
+            unreferenced.clear();
+         }
+         EvictionPolicy policy = evictionPolicy;
+         if (policy != null) {
+            synchronized (policy) {
+               policy.clear();
+            }
+         }
       } catch (NullPointerException npe) { /* NO-OP */ }
    }
 
@@ -102,6 +193,16 @@ public abstract class Storage<T> {
       }
    }
 
+   /**
+    * @return scheduler running this storage's async saves & loads
+    */
+   public synchronized PersistenceScheduler persistence() {
+      if (persistence == null) {
+         persistence = new PersistenceScheduler();
+      }
+      return persistence;
+   }
+
    /**
     * Counts all lists
     */
@@ -137,44 +238,332 @@ public abstract class Storage<T> {
       Subscription.Action delete = new Subscription.Action(Subscription.DELETE).param("objectId", id);
       T toBeRemoved;
       if ((toBeRemoved = cache.remove(id)) != null) {
-         Set<Entry<String, WeakEqualReference<List>>> set = lists.entrySet();
-         Iterator<Entry<String, WeakEqualReference<List>>> it = set.iterator();
-         while (it.hasNext()) {
-            Entry<String, WeakEqualReference<List>> entry = it.next();
-            List list = entry.getValue().get();
-            if (list != null)
-               list.remove(toBeRemoved);
+         removedFromCache(id);
+         for (List list : listsContaining(id)) {
+            list.remove(toBeRemoved);
          }
       }
-      persistentItems.remove(id);
+      if (persistentItems.remove(id)) {
+         release(id);
+      }
+      // lists are done unlinking it, eviction won't see it in cache anymore
+      releaseHandle(id);
       if (subscribers.get(id) != null) {
          subscribers.get(id).updateAll(delete);
       }
       unsubscribeAll(id);
    }
 
-   private void evictUnassociatedEntries() {
-      HashSet<String> idsToKeep = new HashSet<String>(persistentItems);
+   /**
+    * Sets how long unreferenced items are kept before they're evicted.
+    * With 0 items are evicted as soon as nothing references them, a negative
+    * value disables automatic eviction, leaving it to {@link #evict()}.
+    * @param millis
+    */
+   public void setEvictionDelay(long millis) {
+      this.evictionDelay = millis;
+   }
 
-      ArrayList<WeakEqualReference<List>> existingLists = new ArrayList<WeakEqualReference<List>>(lists.values());
-      existingLists.addAll(transactions);
-      for (WeakEqualReference<List> list_ : existingLists) {
-         List list = list_.get();
-         if (list == null)
-            continue;
-         idsToKeep.addAll(list.ids());
+   /**
+    * Evicts items that are no longer referenced by any {@link List},
+    * transaction or {@link #retain(Object)} call. Only items whose
+    * reference count dropped to zero are visited.
+    * @return evicted items count
+    */
+   public int evict() {
+      drainCollectedLists();
+      ArrayList<String> candidates;
+      synchronized (refCounts) {
+         evictionScheduled = false;
+         candidates = new ArrayList<String>(evictionCandidates);
+         evictionCandidates.clear();
       }
-
-      HashSet<String> allIds = new HashSet<String>(cache.keySet());
       int count = 0;
-      for (String id : allIds) {
-         if (!idsToKeep.contains(id)) {
-            if(cache.remove(id) != null) {
-               count++;
+      for (String id : candidates) {
+         if (evictIfUnreferenced(id)) {
+            count++;
+         }
+      }
+      if (count > 0)
+         Log.d(getClass().getSimpleName(), "evicted " + count + " items");
+      return count;
+   }
+
+   /**
+    * Current reference count for the given id, that is the number of lists,
+    * transactions and retains holding it.
+    * @param id
+    * @return
+    */
+   public int refCount(String id) {
+      synchronized (refCounts) {
+         Integer count = refCounts.get(id);
+         return count == null ? 0 : count;
+      }
+   }
+
+   void acquire(String id) {
+      synchronized (refCounts) {
+         Integer count = refCounts.get(id);
+         refCounts.put(id, count == null ? 1 : count + 1);
+         if (count == null) {
+            unreferenced.remove(id);
+         }
+      }
+   }
+
+   void release(String id) {
+      synchronized (refCounts) {
+         Integer count = refCounts.get(id);
+         if (count == null)
+            return;
+         if (count > 1) {
+            refCounts.put(id, count - 1);
+            return;
+         }
+         refCounts.remove(id);
+         if (cache.containsKey(id)) {
+            unreferenced.put(id, Boolean.TRUE);
+         }
+      }
+      unreferenced(id);
+   }
+
+   private void unreferenced(String id) {
+      if (evictionDelay == 0) {
+         evictIfUnreferenced(id);
+         return;
+      }
+      synchronized (refCounts) {
+         evictionCandidates.add(id);
+         if (evictionDelay < 0 || evictionScheduled)
+            return;
+         evictionScheduled = true;
+      }
+      scheduler().schedule(new Runnable() {
+         @Override public void run() {
+            evict();
+         }
+      }, evictionDelay, TimeUnit.MILLISECONDS);
+   }
+
+   private boolean evictIfUnreferenced(String id) {
+      synchronized (refCounts) {
+         if (refCounts.containsKey(id))
+            return false;
+         if (cache.remove(id) == null) {
+            // deleted or trimmed while still referenced
+            releaseHandle(id);
+            return false;
+         }
+         idTable.release(id);
+      }
+      released(id);
+      evictionCount.incrementAndGet();
+      removedFromCache(id);
+      return true;
+   }
+
+   /**
+    * Frees the id's handle for reuse unless the id is still cached or referenced
+    * @param id
+    */
+   private void releaseHandle(String id) {
+      synchronized (refCounts) {
+         if (refCounts.containsKey(id) || cache.containsKey(id) || idTable.find(id) < 0)
+            return;
+         idTable.release(id);
+      }
+      released(id);
+   }
+
+   /**
+    * Called once an id got released, either because its item got evicted or deleted
+    * @param id
+    */
+   void released(String id) {}
+
+   /**
+    * Bounds the cache to the given number of items. Once exceeded, items are
+    * evicted in the order suggested by the policy, unreferenced ones first.
+    * Items retained via {@link #retain(Object)} or held by retained lists are
+    * never evicted, other lists might end up with missing items.
+    * @param size max items count, 0 or less means unbounded
+    * @param policy eviction policy, defaults to {@link LruEvictionPolicy}
+    */
+   public void setMaxSize(int size, EvictionPolicy policy) {
+      if (size > 0 && policy == null) {
+         policy = new LruEvictionPolicy();
+      }
+      if (size > 0) {
+         synchronized (policy) {
+            policy.clear();
+            for (String id : cache.keySet()) {
+               policy.onInsert(id);
             }
          }
       }
-      Log.d(getClass().getSimpleName(), "evicted " + count + " items");
+      this.size = size;
+      this.evictionPolicy = size > 0 ? policy : null;
+      trimToMaxSize(null);
+   }
+
+   public void setMaxSize(int size) {
+      setMaxSize(size, null);
+   }
+
+   /**
+    * @return number of item reads that found an item, that is {@link #get(String)}
+    * or a list's {@link List#get(int)}. Lists sorting, filtering or iterating don't count.
+    */
+   public long hitCount() { return hitCount.get(); }
+
+   /**
+    * @return number of item reads that found nothing, see {@link #hitCount()}
+    */
+   public long missCount() { return missCount.get(); }
+
+   /**
+    * @return number of items removed from cache without being deleted
+    */
+   public long evictionCount() { return evictionCount.get(); }
+
+   private void trimToMaxSize(String insertedId) {
+      EvictionPolicy policy = evictionPolicy;
+      if (policy == null || cache.size() <= size)
+         return;
+      // unreferenced items go first, least recently used of them first,
+      // then whatever the policy suggests that isn't pinned
+      ArrayList<String> victims = pickUnreferenced(cache.size() - size, insertedId);
+      if (cache.size() - victims.size() > size) {
+         victims.addAll(pickVictims(policy, cache.size() - size - victims.size(), insertedId));
+      }
+      for (String id : victims) {
+         if (cache.remove(id) != null) {
+            evictionCount.incrementAndGet();
+            removedFromCache(id);
+            releaseHandle(id);
+         }
+      }
+   }
+
+   private ArrayList<String> pickUnreferenced(int count, String insertedId) {
+      ArrayList<String> victims = new ArrayList<String>();
+      synchronized (refCounts) {
+         Iterator<String> it = unreferenced.keySet().iterator();
+         while (victims.size() < count && it.hasNext()) {
+            String id = it.next();
+            // whatever is being inserted isn't referenced by its list yet
+            if (!id.equals(insertedId))
+               victims.add(id);
+         }
+      }
+      return victims;
+   }
+
+   private ArrayList<String> pickVictims(EvictionPolicy policy, int count, String insertedId) {
+      ArrayList<String> victims = new ArrayList<String>();
+      synchronized (policy) {
+         Iterator<String> it = policy.candidates();
+         while (victims.size() < count && it.hasNext()) {
+            String id = it.next();
+            if (id.equals(insertedId))
+               continue;
+            if (refCount(id) > 0 && !isPinned(id))
+               victims.add(id);
+         }
+      }
+      return victims;
+   }
+
+   private boolean isPinned(String id) {
+      if (persistentItems.contains(id))
+         return true;
+      for (List list : persistentLists) {
+         if (list.reference.contains(id))
+            return true;
+      }
+      return false;
+   }
+
+   private void removedFromCache(String id) {
+      unsaved.remove(id);
+      synchronized (refCounts) {
+         unreferenced.remove(id);
+      }
+      for (SecondaryIndex<T> index : indexes.values()) {
+         index.remove(id);
+      }
+      for (Aggregate<T> aggregate : aggregates.values()) {
+         aggregate.remove(id);
+      }
+      EvictionPolicy policy = evictionPolicy;
+      if (policy == null)
+         return;
+      synchronized (policy) {
+         policy.onRemove(id);
+      }
+   }
+
+   private void accessed(String id, T object) {
+      if (object == null) {
+         missCount.incrementAndGet();
+         return;
+      }
+      hitCount.incrementAndGet();
+      EvictionPolicy policy = evictionPolicy;
+      if (policy == null)
+         return;
+      synchronized (policy) {
+         policy.onAccess(id);
+      }
+      synchronized (refCounts) {
+         // access ordered, moves it to the end
+         unreferenced.get(id);
+      }
+   }
+
+   /**
+    * Releases ids held by lists & transactions that got garbage collected
+    */
+   private void drainCollectedLists() {
+      ListReference reference;
+      while ((reference = (ListReference) collectedLists.poll()) != null) {
+         reference.releaseAll();
+      }
+   }
+
+   /**
+    * Threads evaluating chunks of {@link List#filterSelf(Query)}
+    */
+   static synchronized ExecutorService filterPool() {
+      if (FILTER_POOL == null) {
+         FILTER_POOL = Executors.newFixedThreadPool(FILTER_THREADS - 1, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Storage filter");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return FILTER_POOL;
+   }
+
+   /**
+    * Shared background thread for evictions & delayed notifications
+    */
+   static synchronized ScheduledExecutorService scheduler() {
+      if (SCHEDULER == null) {
+         SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Storage scheduler");
+               t.setDaemon(true);
+               t.setPriority(Thread.MIN_PRIORITY);
+               return t;
+            }
+         });
+      }
+      return SCHEDULER;
    }
 
    /**
@@ -192,7 +581,41 @@ public abstract class Storage<T> {
     * @return
     */
    public T get(String id) {
-      return cache == null || id == null ? null : cache.get(id);
+      if (cache == null || id == null)
+         return null;
+      T object = cache.get(id);
+      accessed(id, object);
+      return object;
+   }
+
+   /**
+    * Clears the item's unsaved flag, transport layers call it before writing it
+    * @param id
+    * @return true if the item got stored or updated since it was last saved
+    */
+   boolean takeUnsaved(String id) {
+      return unsaved.remove(id) != null;
+   }
+
+   /**
+    * Flags the item to be written by the next save, e.g. after a failed one
+    * @param id
+    */
+   void markUnsaved(String id) {
+      if (cache.containsKey(id))
+         unsaved.put(id, Boolean.TRUE);
+   }
+
+   /**
+    * Reads the cache without counting it as an access, for lookups done by
+    * lists & views on their own like sorting, filtering or iterating
+    * @param id
+    * @return
+    */
+   T peek(String id) {
+      if (cache == null || id == null)
+         return null;
+      return cache.get(id);
    }
 
    /**
@@ -203,6 +626,106 @@ public abstract class Storage<T> {
       return cache == null ? Collections.<T>emptyList() : cache.values();
    }
 
+   /**
+    * Declares an index answering {@link #find(String, Object)} lookups.
+    * Items already in storage get indexed right away.
+    * @param name
+    * @param key extracts the indexed key, items with null keys aren't indexed
+    */
+   public void addHashIndex(String name, ComparableKey<T> key) {
+      addIndex(name, new SecondaryIndex<T>(key, false));
+   }
+
+   /**
+    * Declares an index answering both {@link #find(String, Object)} and
+    * {@link #findRange(String, Comparable, Comparable)} lookups.
+    * @param name
+    * @param key extracts the indexed key, items with null keys aren't indexed
+    */
+   public void addSortedIndex(String name, ComparableKey<T> key) {
+      addIndex(name, new SecondaryIndex<T>(key, true));
+   }
+
+   private void addIndex(String name, SecondaryIndex<T> index) {
+      indexes.put(name, index);
+      if (cache == null)
+         return;
+      for (Map.Entry<String, T> e : cache.entrySet()) {
+         index.update(e.getKey(), e.getValue());
+      }
+   }
+
+   public void removeIndex(String name) {
+      indexes.remove(name);
+   }
+
+   /**
+    * @param index index name
+    * @param key
+    * @return items with the given key
+    */
+   public ArrayList<T> find(String index, Object key) {
+      return resolve(index(index).get(key));
+   }
+
+   /**
+    * @param index name of a sorted index
+    * @param from lowest key included, null for no lower bound
+    * @param to highest key excluded, null for no upper bound
+    * @return items with keys in range, ordered by key
+    */
+   public ArrayList<T> findRange(String index, Comparable from, Comparable to) {
+      return resolve(index(index).range(from, to));
+   }
+
+   /**
+    * Registers an {@link Aggregate} maintained as items get stored, updated or removed.
+    * Items already in storage are accounted for right away.
+    * @param name
+    * @param filter items to account for, null for all
+    * @param groupBy group key, null for a single group
+    * @param value summed up value, null to count only
+    * @return
+    */
+   public Aggregate<T> addAggregate(String name, Query<T> filter, ComparableKey<T> groupBy, LongKey<T> value) {
+      Aggregate<T> aggregate = new Aggregate<T>(filter, groupBy, value);
+      aggregate.subscribers.coalesce(notificationWindow);
+      aggregate.subscribers.deliverOn(notificationExecutor, notificationQueueSize);
+      // register first, updates are idempotent so racing with the scan is fine
+      aggregates.put(name, aggregate);
+      if (cache != null) {
+         for (Map.Entry<String, T> e : cache.entrySet()) {
+            aggregate.update(e.getKey(), cache.get(e.getKey()));
+         }
+      }
+      return aggregate;
+   }
+
+   public Aggregate<T> aggregate(String name) {
+      return aggregates.get(name);
+   }
+
+   public void removeAggregate(String name) {
+      aggregates.remove(name);
+   }
+
+   private SecondaryIndex<T> index(String name) {
+      SecondaryIndex<T> index = indexes.get(name);
+      if (index == null)
+         throw new IllegalArgumentException("no index named " + name);
+      return index;
+   }
+
+   private ArrayList<T> resolve(java.util.List<String> ids) {
+      ArrayList<T> result = new ArrayList<T>(ids.size());
+      for (String id : ids) {
+         T t = get(id);
+         if (t != null)
+            result.add(t);
+      }
+      return result;
+   }
+
    /**
     * Pushes an item to storage, notifies all relevant
     * item & lists subscribers.
@@ -219,8 +742,12 @@ public abstract class Storage<T> {
     * @param params
     */
    public void pushWithParams(T t, HashMap<String, Object> params) {
-      String id = id(t);
+      String id = idTable.intern(id(t));
       addOrUpdate(id, t);
+      if (refCount(id) == 0) {
+         // nothing holds it, make sure it doesn't stay in cache forever
+         unreferenced(id);
+      }
       Subscription.Action push = new Subscription.Action(Subscription.PUSH).param("objectId", id);
       if (params != null) {
          for (Map.Entry<String, Object> e : params.entrySet()) {
@@ -231,22 +758,140 @@ public abstract class Storage<T> {
       if (subscribers.get(id) != null) {
          subscribers.get(id).updateAll(push);
       }
-      for (WeakEqualReference<List> _list : lists.values()) {
-         List list = _list.get();
-         if (list != null && list.ids.contains(id)) {
-            list.subscribers.updateAll(push);
+      for (List list : listsContaining(id)) {
+         list.pushed(Collections.singletonList(id));
+         list.subscribers.updateAll(push);
+      }
+   }
+
+   /**
+    * Pushes items to storage in one go. Every affected list and every
+    * item's subscribers get a single {@link Subscription#PUSH} action
+    * listing changed ids under "objectIds".
+    * @param items
+    * @param params
+    */
+   public void pushAll(Collection<T> items, HashMap<String, Object> params) {
+      LinkedHashSet<String> pushedIds = new LinkedHashSet<String>();
+      HashMap<List, LinkedHashSet<String>> idsByList = new HashMap<List, LinkedHashSet<String>>();
+      for (T t : items) {
+         String id = idTable.intern(id(t));
+         addOrUpdate(id, t);
+         if (refCount(id) == 0) {
+            unreferenced(id);
+         }
+         if (!pushedIds.add(id))
+            continue;
+         for (List list : listsContaining(id)) {
+            LinkedHashSet<String> listIds = idsByList.get(list);
+            if (listIds == null) {
+               listIds = new LinkedHashSet<String>();
+               idsByList.put(list, listIds);
+            }
+            listIds.add(id);
+         }
+      }
+
+      for (String id : pushedIds) {
+         Subscribers itemSubscribers = subscribers.get(id);
+         if (itemSubscribers != null) {
+            itemSubscribers.updateAll(pushAction(params, Collections.singletonList(id)));
+         }
+      }
+      for (Map.Entry<List, LinkedHashSet<String>> e : idsByList.entrySet()) {
+         List list = e.getKey();
+         list.pushed(e.getValue());
+         list.subscribers.updateAll(pushAction(params, e.getValue()));
+      }
+   }
+
+   private Subscription.Action pushAction(HashMap<String, Object> params, Collection<String> ids) {
+      Subscription.Action push = new Subscription.Action(Subscription.PUSH);
+      if (params != null) {
+         push.params.putAll(params);
+      }
+      if (ids.size() == 1) {
+         push.param("objectId", ids.iterator().next());
+      }
+      return push.param("objectIds", new ArrayList<String>(ids));
+   }
+
+   /**
+    * Lists obtained via {@link #obtainList(String)} that currently hold
+    * the given id. Looks up the membership index instead of scanning
+    * every list, cleared references are dropped on the way.
+    * @param id
+    * @return
+    */
+   java.util.List<List> listsContaining(String id) {
+      ArrayList<List> result = new ArrayList<List>();
+      synchronized (listsById) {
+         ArrayList<WeakEqualReference<List>> refs = listsById.get(id);
+         if (refs == null)
+            return result;
+         Iterator<WeakEqualReference<List>> it = refs.iterator();
+         while (it.hasNext()) {
+            List list = it.next().get();
+            if (list == null) {
+               it.remove();
+            } else {
+               result.add(list);
+            }
+         }
+         if (refs.isEmpty()) {
+            listsById.remove(id);
+         }
+      }
+      return result;
+   }
+
+   private void link(String id, WeakEqualReference<List> reference) {
+      synchronized (listsById) {
+         ArrayList<WeakEqualReference<List>> refs = listsById.get(id);
+         if (refs == null) {
+            refs = new ArrayList<WeakEqualReference<List>>(2);
+            listsById.put(id, refs);
+         }
+         // compare by identity, a recreated list gets a new reference
+         for (WeakEqualReference<List> ref : refs) {
+            if (ref == reference)
+               return;
+         }
+         refs.add(reference);
+      }
+   }
+
+   private void unlink(String id, WeakEqualReference<List> reference) {
+      synchronized (listsById) {
+         ArrayList<WeakEqualReference<List>> refs = listsById.get(id);
+         if (refs == null)
+            return;
+         for (int i = 0; i < refs.size(); i++) {
+            if (refs.get(i) == reference) {
+               refs.remove(i);
+               break;
+            }
+         }
+         if (refs.isEmpty()) {
+            listsById.remove(id);
          }
       }
    }
 
    public void retain(T t) {
       if (t == null) return;
-      persistentItems.add(id(t));
+      String id = id(t);
+      if (persistentItems.add(id)) {
+         acquire(id);
+      }
       push(t);
    }
 
    public void recycle(T t) {
-      persistentItems.remove(id(t));
+      String id = lookupId(t);
+      if (persistentItems.remove(id)) {
+         release(id);
+      }
    }
 
    /**
@@ -256,7 +901,10 @@ public abstract class Storage<T> {
     */
    public void subscribe(String id, Subscription subscription) {
       if (subscribers.get(id) == null) {
-         subscribers.put(id, new Subscribers());
+         Subscribers itemSubscribers = new Subscribers();
+         itemSubscribers.coalesce(notificationWindow);
+         itemSubscribers.deliverOn(notificationExecutor, notificationQueueSize);
+         subscribers.put(id, itemSubscribers);
       }
       subscribers.get(id).addSubscriber(subscription);
    }
@@ -283,49 +931,154 @@ public abstract class Storage<T> {
    }
 
    /**
-    * Remove all subscriptions ever
+    * Coalesces notifications of all items & lists, existing and
+    * obtained later on. See {@link Subscribers#coalesce(long)}.
+    * @param window
     */
-   public void unsubscribeAll() {
-      subscribers.clear();
+   public void coalesceNotifications(long window) {
+      notificationWindow = window;
+      for (Subscribers s : subscribers.values()) {
+         s.coalesce(window);
+      }
       for (WeakEqualReference<List> _list : lists.values()) {
          List list = _list.get();
          if (list != null)
-            list.unsubscribeAll();
+            list.subscribers.coalesce(window);
       }
    }
 
-   protected void addOrUpdate(String id, T object) {
-      cache.put(id, object);
-   }
-
    /**
-    * Lazy initializes instance of {@link List}.
-    * @param name List's name
+    * Delivers notifications of all items & lists, existing and obtained
+    * later on, using the given executor. See {@link Subscribers#deliverOn(Executor, int)}.
+    * @param executor
+    * @param maxQueued
+    */
+   public void deliverNotificationsOn(Executor executor, int maxQueued) {
+      notificationExecutor = executor;
+      notificationQueueSize = maxQueued;
+      for (Subscribers s : subscribers.values()) {
+         s.deliverOn(executor, maxQueued);
+      }
+      for (WeakEqualReference<List> _list : lists.values()) {
+         List list = _list.get();
+         if (list != null)
+            list.subscribers.deliverOn(executor, maxQueued);
+      }
+   }
+
+   /**
+    * @return executor running tasks on the main thread
+    */
+   public static synchronized Executor mainThreadExecutor() {
+      if (MAIN_THREAD == null) {
+         final Handler handler = new Handler(Looper.getMainLooper());
+         MAIN_THREAD = new Executor() {
+            @Override public void execute(Runnable command) {
+               handler.post(command);
+            }
+         };
+      }
+      return MAIN_THREAD;
+   }
+
+   /**
+    * Delivers pending coalesced notifications of all items & lists
+    */
+   public void flushNotifications() {
+      for (Subscribers s : new ArrayList<Subscribers>(subscribers.values())) {
+         s.flush();
+      }
+      for (WeakEqualReference<List> _list : new ArrayList<WeakEqualReference<List>>(lists.values())) {
+         List list = _list.get();
+         if (list != null)
+            list.subscribers.flush();
+      }
+   }
+
+   /**
+    * Remove all subscriptions ever
+    */
+   public void unsubscribeAll() {
+      subscribers.clear();
+      for (WeakEqualReference<List> _list : lists.values()) {
+         List list = _list.get();
+         if (list != null)
+            list.unsubscribeAll();
+      }
+   }
+
+   protected void addOrUpdate(String id, T object) {
+      addOrUpdate(id, object, true);
+   }
+
+   /**
+    * @param trim false if the caller bounds the cache itself once it's
+    *             done linking a batch, otherwise the batch's own items
+    *             would look unreferenced and get evicted first
+    * @return the replaced object or null
+    */
+   private T addOrUpdate(String id, T object, boolean trim) {
+      unsaved.put(id, Boolean.TRUE);
+      T previous = cache.put(id, object);
+      if (previous == null) {
+         synchronized (refCounts) {
+            if (!refCounts.containsKey(id) && cache.containsKey(id))
+               unreferenced.put(id, Boolean.TRUE);
+         }
+      }
+      if (previous != null && previous != object) {
+         // sort keys lists cached for the replaced version are stale
+         for (List list : listsContaining(id)) {
+            list.forgetKey(id);
+         }
+      }
+      for (SecondaryIndex<T> index : indexes.values()) {
+         index.update(id, object);
+      }
+      for (Aggregate<T> aggregate : aggregates.values()) {
+         aggregate.update(id, object);
+      }
+      EvictionPolicy policy = evictionPolicy;
+      if (policy == null)
+         return previous;
+      synchronized (policy) {
+         if (previous == null) {
+            policy.onInsert(id);
+         } else {
+            policy.onAccess(id);
+         }
+      }
+      if (trim) {
+         trimToMaxSize(id);
+      }
+      return previous;
+   }
+
+   /**
+    * Lazy initializes instance of {@link List}.
+    * @param name List's name
     * @return
     */
    public List obtainList(String name) {
-      evictUnassociatedEntries();
+      drainCollectedLists();
       WeakEqualReference<List> _list = lists.get(name);
-      List list;
-      if (_list == null) {
-         list = new List(name);
-         lists.put(name, new WeakEqualReference<List>(list));
-         return list;
-      }
-      list = _list.get();
+      List list = _list == null ? null : _list.get();
       if (list == null) {
          list = new List(name);
-         lists.put(name, new WeakEqualReference<List>(list));
+         lists.put(name, list.reference);
       }
       return list;
    }
 
    /**
-    * Removes the list
+    * Removes the list, its items are no longer referenced by it
     * @param name
     */
    public void removeList(String name) {
-      lists.remove(name);
+      WeakEqualReference<List> _list = lists.remove(name);
+      if (_list != null) {
+         ((ListReference) _list).releaseAll();
+      }
    }
 
    public void clearList(List list) {
@@ -351,6 +1104,16 @@ public abstract class Storage<T> {
     */
    public abstract String id(T object);
 
+   /**
+    * Id used to look an object up, as opposed to storing it. Storages
+    * keeping extra state per id don't create it for lookups.
+    * @param object
+    * @return
+    */
+   String lookupId(T object) {
+      return id(object);
+   }
+
    /**
     * @return Associated template {@link Class}
     */
@@ -363,20 +1126,35 @@ public abstract class Storage<T> {
     * several locations.
     */
    public class List implements Iterable<T>, java.util.List<T> {
-      private CopyOnWriteArrayList<String> ids;
-      private Subscribers subscribers;
+      private volatile IdSequence ids;
+      Subscribers subscribers;
       private String name;
       private int retainCount;
       protected int trimSize;
       protected List transaction;
       protected HashMap<String, Object> meta;
+      private ListReference reference;
+      private volatile ConcurrentHashMap<String, Integer> positions;
+      private volatile int scans;
 
       private List(String name) {
-         ids = new CopyOnWriteArrayList<String>();
+         this(name, true);
+      }
+
+      /**
+       * @param name
+       * @param indexed false for views following another list, storage
+       *                wide changes reach them through that list only
+       */
+      private List(String name, boolean indexed) {
+         ids = new IdSequence(idTable);
          subscribers = new Subscribers();
+         subscribers.coalesce(notificationWindow);
+         subscribers.deliverOn(notificationExecutor, notificationQueueSize);
          this.name = name;
          trimSize = 30;
          retainCount = 0;
+         reference = new ListReference(this, indexed);
       }
 
       public void setTrimSize(int trimSize) {
@@ -413,8 +1191,11 @@ public abstract class Storage<T> {
          return meta != null ? new HashMap<String, Object>(meta) : null;
       }
 
-      public CopyOnWriteArrayList<String> ids() {
-         return ids;
+      /**
+       * @return snapshot of the list's ids
+       */
+      public java.util.List<String> ids() {
+         return ids.snapshot();
       }
 
       /**
@@ -422,18 +1203,20 @@ public abstract class Storage<T> {
        * @param list
        */
       private List(List list) {
-         ids = new CopyOnWriteArrayList<String>();
-         ids.addAll(list.ids);
+         ids = list.ids.copy();
          subscribers = new Subscribers();
          this.name = list.name;
          this.dedupe = list.dedupe;
-         this.comparator = list.comparator;
+         setComparator(list.comparator);
+         this.ordered = list.ordered;
          if (list.meta != null) {
             this.meta = new HashMap<String, Object>();
             this.meta.putAll(list.meta);
          }
          trimSize = list.trimSize;
          transaction = list;
+         reference = new ListReference(this, false);
+         reference.replace(ids);
          mute();
       }
 
@@ -466,18 +1249,17 @@ public abstract class Storage<T> {
 
       /**
        * Load items from persistence. Async.
+       * @return future result of {@link #loadSync()}, false right away if the list isn't empty
        */
-      public void load() {
+      public Future<Boolean> load() {
          if (size() > 0)
-            return;
-         Thread t = new Thread(new Runnable() {
+            return PersistenceScheduler.completed(false);
+         return persistence().submit(new Callable<Boolean>() {
             @Override
-            public void run() {
-               loadSync();
+            public Boolean call() {
+               return loadSync();
             }
          });
-         t.setPriority(Thread.MIN_PRIORITY);
-         t.run();
       }
 
       /**
@@ -490,17 +1272,12 @@ public abstract class Storage<T> {
       }
 
       /**
-       * Persist items. Async.
+       * Persist items. Async, saves requested within the scheduler's
+       * save delay end up in one write.
+       * @return future result of the write
        */
-      public void save() {
-         Thread t = new Thread(new Runnable() {
-            @Override
-            public void run() {
-               saveSync();
-            }
-         });
-         t.setPriority(Thread.MIN_PRIORITY);
-         t.run();
+      public Future<Boolean> save() {
+         return persistence().save(this);
       }
 
       /**
@@ -512,9 +1289,39 @@ public abstract class Storage<T> {
       }
 
       public boolean saveSync(int limit) {
+         resolveAll();
          return transportLayer().saveSync(this, limit);
       }
 
+      /**
+       * Load ids and meta from persistence, items get fetched as they're
+       * accessed. Async.
+       * @return future result of {@link #loadIdsSync()}, false right away if the list isn't empty
+       */
+      public Future<Boolean> loadIds() {
+         if (size() > 0)
+            return PersistenceScheduler.completed(false);
+         return persistence().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+               return loadIdsSync();
+            }
+         });
+      }
+
+      /**
+       * Restores just ids and meta of the list if the transport layer is
+       * a {@link LazyTransportLayer}, otherwise same as {@link #loadSync()}.
+       * Missing items are fetched in pages once accessed.
+       * @return
+       */
+      public boolean loadIdsSync() {
+         TransportLayer transportLayer = transportLayer();
+         if (transportLayer instanceof LazyTransportLayer)
+            return ((LazyTransportLayer) transportLayer).loadIdsSync(this);
+         return loadSync();
+      }
+
       public void retain() {
          if (retainCount == 0) {
             persistentLists.add(this);
@@ -535,7 +1342,11 @@ public abstract class Storage<T> {
       }
 
       private T get(String id) {
-         return cache.get(id);
+         T object = peek(id);
+         if (unresolved != null) {
+            object = resolve(id, object);
+         }
+         return object;
       }
 
       @Override
@@ -562,49 +1373,78 @@ public abstract class Storage<T> {
 
       @Override
       public boolean add(T object) {
-         String id = id(object);
-         addOrUpdate(id, object);
-         if ((!dedupe) || (dedupe && !ids.contains(id)))
-            ids.add(id);
+         String id = store(id(object), object);
+         if (!dedupe || !reference.contains(id)) {
+            if (ordered) {
+               int location = insertionPoint(ids, id);
+               ids.add(location, id);
+               insertedAt(location, id);
+            } else {
+               ids.add(id);
+               appended(id);
+            }
+            linked(id);
+         }
          sort();
-         subscribers.updateAll(Subscription.ADD);
+         subscribers.updateAll(new Subscription.Action(Subscription.ADD).param("objectId", id));
          return true;
       }
 
       @Override
       public void add(int location, T object) {
-         String id = id(object);
-         addOrUpdate(id, object);
-         if ((!dedupe) || (dedupe && !ids.contains(id)))
+         insert(location, object);
+      }
+
+      /**
+       * @return location the object ended up at, -1 if dedupe left it out
+       */
+      int insert(int location, T object) {
+         String id = store(id(object), object);
+         int inserted = -1;
+         if (!dedupe || !reference.contains(id)) {
+            if (ordered)
+               location = insertionPoint(ids, id);
             ids.add(location, id);
+            linked(id);
+            insertedAt(location, id);
+            inserted = location;
+         }
          sort();
-         subscribers.updateAll(Subscription.ADD);
+         if (inserted >= 0 && comparator != null && !ordered) {
+            inserted = indexOfId(id);
+         }
+         subscribers.updateAll(new Subscription.Action(Subscription.ADD).param("objectId", id));
+         return inserted;
       }
 
       @Override
       public boolean addAll(Collection<? extends T> collection) {
+         java.util.List<String> before = snapshotIfObserved();
+         ArrayList<String> collectionIds = new ArrayList<String>(collection.size());
+         HashSet<String> seen = dedupe ? new HashSet<String>() : null;
          for (T object : collection) {
-            addOrUpdate(id(object), object);
-            if ((!dedupe) || (dedupe && !ids.contains(id(object))))
-               ids.add(id(object));
+            String id = store(id(object), object, false);
+            if (!dedupe || (!reference.contains(id) && seen.add(id)))
+               collectionIds.add(id);
          }
+         insertIds(-1, collectionIds);
+         trimToMaxSize(null);
          sort();
-         subscribers.updateAll(Subscription.ADD_ALL);
+         subscribers.updateAll(withDiff(new Subscription.Action(Subscription.ADD_ALL).param("objectIds", collectionIds), before));
          return false;
       }
 
       @Override
       public boolean addAll(int location, Collection<? extends T> collection) {
-         ArrayList<String> collectionIds = new ArrayList<String>();
+         java.util.List<String> before = snapshotIfObserved();
+         ArrayList<String> collectionIds = new ArrayList<String>(collection.size());
+         HashSet<String> seen = dedupe ? new HashSet<String>() : null;
+         boolean listed = false;
          for (Object t : collection) {
-            String id = id((T)t);
+            String id = store(id((T)t), (T)t, false);
             if (dedupe) {
-               if (ids.contains(id)) {
-                  // if there is a duplicate it should get removed so that
-                  // it gets inserted near requested location
-                  ids.remove(id);
-               }
-               if (!collectionIds.contains(id)) {
+               listed |= reference.contains(id);
+               if (seen.add(id)) {
                   // the list that's going to be appended might contain duplicates on its own
                   collectionIds.add(id);
                }
@@ -612,58 +1452,95 @@ public abstract class Storage<T> {
                // add anything
                collectionIds.add(id);
             }
-            addOrUpdate(id, (T)t);
          }
-         boolean value = ids.addAll(location, collectionIds);
+         boolean value;
+         if (listed) {
+            // if there are duplicates they should get removed so that
+            // they get inserted near requested location
+            ArrayList<String> newIds = new ArrayList<String>(ids.size() + collectionIds.size());
+            for (String id : ids) {
+               if (!seen.contains(id))
+                  newIds.add(id);
+            }
+            if (ordered) {
+               newIds = merge(newIds, collectionIds);
+               value = !collectionIds.isEmpty();
+            } else {
+               value = newIds.addAll(location, collectionIds);
+            }
+            replaceIds(new IdSequence(idTable, newIds));
+         } else {
+            value = !collectionIds.isEmpty();
+            insertIds(location, collectionIds);
+         }
+         trimToMaxSize(null);
          sort();
-         subscribers.updateAll(Subscription.ADD_ALL);
+         subscribers.updateAll(withDiff(new Subscription.Action(Subscription.ADD_ALL).param("objectIds", collectionIds), before));
          return value;
       }
 
       public boolean addUpFront(Collection<? extends T> collection, HashMap<String, Object> params) {
          Subscription.Action action = new Subscription.Action(Subscription.ADD_UPFRONT);
-         action.params = params;
-         ArrayList<String> collectionIds = new ArrayList<String>();
+         if (params != null) {
+            // objectIds & diff go into the action, not the caller's map
+            action.params.putAll(params);
+         }
+         java.util.List<String> before = snapshotIfObserved();
+         ArrayList<String> collectionIds = new ArrayList<String>(collection.size());
+         HashSet<String> seen = dedupe ? new HashSet<String>() : null;
          for (Object t : collection) {
-            String id = id((T)t);
-            if ((!dedupe) || (dedupe && !ids.contains(id)))
+            String id = store(id((T)t), (T)t, false);
+            if (!dedupe || (!reference.contains(id) && seen.add(id)))
                collectionIds.add(id);
-            addOrUpdate(id, (T)t);
          }
-         boolean value = ids.addAll(0, collectionIds);
+         boolean value = !collectionIds.isEmpty();
+         insertIds(0, collectionIds);
+         trimToMaxSize(null);
          sort();
-         subscribers.updateAll(action);
+         action.param("objectIds", collectionIds);
+         subscribers.updateAll(withDiff(action, before));
          return value;
       }
 
       @Override
       public void clear() {
-         ids.clear();
+         unresolved = null;
+         replaceIds(new IdSequence(idTable));
          subscribers.updateAll(Subscription.CLEAR);
       }
 
       @Override
       public boolean contains(Object object) {
-         return ids.contains(id((T) object));
+         return reference.contains(lookupId((T) object));
       }
 
       @Override
       public boolean containsAll(Collection<?> collection) {
-         ArrayList<String> collectionIds = new ArrayList<String>();
          for (Object t : collection) {
-            collectionIds.add(id((T)t));
+            if (!reference.contains(lookupId((T)t)))
+               return false;
          }
-         return ids.containsAll(collectionIds);
+         return true;
       }
 
       @Override
       public T get(int location) {
-         return get(ids.get(location));
+         return access(ids.get(location));
+      }
+
+      /**
+       * Reads an item the list's user asked for, unlike {@link #get(String)}
+       * it counts as an access for stats & eviction
+       */
+      private T access(String id) {
+         T object = get(id);
+         accessed(id, object);
+         return object;
       }
 
       @Override
       public int indexOf(Object object) {
-         return ids.indexOf(id((T) object));
+         return indexOfId(lookupId((T) object));
       }
 
       @Override
@@ -673,26 +1550,33 @@ public abstract class Storage<T> {
 
       @Override
       public int lastIndexOf(Object object) {
-         return ids.lastIndexOf(id((T) object));
+         return ids.lastIndexOf(lookupId((T) object));
       }
 
       @Override
       public ListIterator<T> listIterator() {
-         // TODO implement
-         throw new NoSuchMethodError();
+         return listIterator(0);
       }
 
+      /**
+       * Iterates over a snapshot of the list's ids resolving items lazily.
+       * {@link ListIterator#add(Object)}, {@link ListIterator#set(Object)} and
+       * {@link ListIterator#remove()} go through the list and refresh the snapshot.
+       */
       @Override
       public ListIterator<T> listIterator(int location) {
-         // TODO implement
-         throw new NoSuchMethodError();
+         if (location < 0 || location > ids.size()) {
+            throw new IndexOutOfBoundsException("location=" + location + ", size=" + ids.size());
+         }
+         return new Cursor(location);
       }
 
       @Override
       public T remove(int location) {
-         String id = ids.get(location);
-         ids.remove(id);
-         subscribers.updateAll(Subscription.REMOVE);
+         String id = ids.remove(location);
+         unlinked(id);
+         removedAt(location, id);
+         subscribers.updateAll(new Subscription.Action(Subscription.REMOVE).param("objectId", id));
          return cache.get(id);
       }
 
@@ -711,39 +1595,55 @@ public abstract class Storage<T> {
 
       @Override
       public boolean remove(Object object) {
-         boolean value = ids.remove(id((T) object));
-         if (value)
-            subscribers.updateAll(Subscription.REMOVE);
-         return value;
+         int location = indexOfId(lookupId((T) object));
+         if (location < 0)
+            return false;
+         remove(location);
+         return true;
       }
 
       @Override
       public boolean removeAll(Collection<?> collection) {
-         ArrayList<String> collectionIds = new ArrayList<String>();
+         HashSet<String> collectionIds = new HashSet<String>();
          for (Object t : collection) {
-            collectionIds.add(id((T)t));
+            collectionIds.add(lookupId((T)t));
          }
-         boolean value = ids.removeAll(collectionIds);
+         IdSequence remaining = ids.copy();
+         boolean value = remaining.removeAll(collectionIds);
+         replaceIds(remaining);
          subscribers.updateAll(Subscription.REMOVE_ALL);
          return value;
       }
 
       @Override
       public boolean retainAll(Collection<?> collection) {
-         ArrayList<String> collectionIds = new ArrayList<String>();
+         HashSet<String> collectionIds = new HashSet<String>();
          for (Object t : collection) {
-            collectionIds.add(id((T)t));
+            collectionIds.add(lookupId((T)t));
          }
-         boolean value = ids.retainAll(collectionIds);
+         IdSequence retained = ids.copy();
+         boolean value = retained.retainAll(collectionIds);
+         replaceIds(retained);
          subscribers.updateAll(Subscription.RETAIN_ALL);
          return value;
       }
 
       @Override
       public T set(int location, T object) {
-         T previous = cache.get(ids.get(location));
-         ids.set(location, id(object));
-         return previous;
+         String id = store(id(object), object);
+         String previousId = ids.set(location, id);
+         linked(id);
+         unlinked(previousId);
+         ConcurrentHashMap<String, Integer> index = positions;
+         if (index != null && !id.equals(previousId)) {
+            Integer position = index.get(previousId);
+            if (position != null && position == location)
+               index.remove(previousId);
+            position = index.get(id);
+            if (position == null || position > location)
+               index.put(id, location);
+         }
+         return cache.get(previousId);
       }
 
       @Override
@@ -751,13 +1651,118 @@ public abstract class Storage<T> {
          return ids.size();
       }
 
+      /**
+       * Read only view of the given range. It is backed by a snapshot of the
+       * list's ids, items are resolved from the cache as they're accessed.
+       */
       @Override
       public java.util.List<T> subList(int start, int end) {
-         if (start < 0 || end > size()) {
+         IdSequence current = ids;
+         if (start < 0 || end > current.size() || start > end) {
             throw new IndexOutOfBoundsException("Wrong subList params, start="+start+", end="+end);
          }
-         // TODO implement
-         throw new NoSuchMethodError();
+         return new Window(current.subList(start, end));
+      }
+
+      /**
+       * Same as {@link #subList(int, int)} with the range clamped to the list's bounds,
+       * handy for paging.
+       * @param start
+       * @param count
+       * @return
+       */
+      public java.util.List<T> window(int start, int count) {
+         IdSequence current = ids;
+         int from = Math.max(0, Math.min(start, current.size()));
+         int to = Math.max(from, Math.min(current.size(), start + Math.max(0, count)));
+         return new Window(current.subList(from, to));
+      }
+
+      private class Window extends AbstractList<T> implements RandomAccess {
+         private final java.util.List<String> windowIds;
+
+         Window(java.util.List<String> windowIds) {
+            this.windowIds = windowIds;
+         }
+
+         @Override public T get(int location) {
+            return access(windowIds.get(location));
+         }
+
+         @Override public int size() {
+            return windowIds.size();
+         }
+
+         @Override public java.util.List<T> subList(int start, int end) {
+            return new Window(windowIds.subList(start, end));
+         }
+      }
+
+      private class Cursor implements ListIterator<T> {
+         private java.util.List<String> snapshot;
+         private int index;
+         private int last = -1;
+
+         Cursor(int index) {
+            this.snapshot = ids.snapshot();
+            this.index = index;
+         }
+
+         @Override public boolean hasNext() {
+            return index < snapshot.size();
+         }
+
+         @Override public T next() {
+            if (index >= snapshot.size())
+               throw new NoSuchElementException();
+            last = index;
+            return List.this.get(snapshot.get(index++));
+         }
+
+         @Override public boolean hasPrevious() {
+            return index > 0;
+         }
+
+         @Override public T previous() {
+            if (index <= 0)
+               throw new NoSuchElementException();
+            last = --index;
+            return List.this.get(snapshot.get(index));
+         }
+
+         @Override public int nextIndex() {
+            return index;
+         }
+
+         @Override public int previousIndex() {
+            return index - 1;
+         }
+
+         @Override public void remove() {
+            if (last < 0)
+               throw new IllegalStateException();
+            List.this.remove(last);
+            if (last < index)
+               index--;
+            last = -1;
+            snapshot = ids.snapshot();
+         }
+
+         @Override public void set(T object) {
+            if (last < 0)
+               throw new IllegalStateException();
+            List.this.set(last, object);
+            snapshot = ids.snapshot();
+         }
+
+         @Override public void add(T object) {
+            // ordered lists & sorting might put it elsewhere, dedupe might drop it
+            int inserted = insert(index, object);
+            if (inserted >= 0 && inserted <= index)
+               index++;
+            last = -1;
+            snapshot = ids.snapshot();
+         }
       }
 
       public ArrayList<T> toArrayList(int count) {
@@ -808,9 +1813,189 @@ public abstract class Storage<T> {
          return array;
       }
 
+////// LAZY LOADING
+      private volatile ConcurrentHashMap<String, Boolean> unresolved;
+      private int pageSize = 30;
+      private int prefetchDistance = 10;
+      private final AtomicBoolean prefetching = new AtomicBoolean();
+      private final Object fetchLock = new Object();
+
+      /**
+       * Paging used for lists restored with {@link #loadIdsSync()}
+       * @param pageSize number of items fetched at once
+       * @param prefetchDistance how far ahead of the accessed item the next page gets
+       *                         fetched in background, 0 or less disables prefetching
+       */
+      public void setPaging(int pageSize, int prefetchDistance) {
+         this.pageSize = Math.max(1, pageSize);
+         this.prefetchDistance = prefetchDistance;
+      }
+
+      /**
+       * Replaces the list's ids with the restored ones. Items not in cache
+       * are fetched from the {@link LazyTransportLayer} once accessed.
+       * Meant to be called by transport layers.
+       * @param restoredIds
+       * @param meta
+       */
+      public void restore(java.util.List<String> restoredIds, HashMap<String, Object> meta) {
+         java.util.List<String> before = snapshotIfObserved();
+         IdSequence newIds = new IdSequence(idTable, restoredIds);
+         ConcurrentHashMap<String, Boolean> missing = new ConcurrentHashMap<String, Boolean>();
+         for (String id : newIds) {
+            if (!cache.containsKey(id))
+               missing.put(id, Boolean.TRUE);
+         }
+         if (meta != null) {
+            this.meta = meta;
+         }
+         replaceIds(newIds);
+         unresolved = missing.isEmpty() ? null : missing;
+         subscribers.updateAll(withDiff(new Subscription.Action(Subscription.LOADED), before));
+      }
+
+      /**
+       * Appends a chunk of loaded items in their saved order, without sorting
+       * or notifying anyone. Items already in cache are kept as they're most
+       * likely fresher. Meant to be called by transport layers streaming a
+       * list into a {@link #transaction()}, followed by a single
+       * {@link #sortSelf(Comparator)} & {@link #commit(Subscription.Action)}.
+       * @param loaded
+       */
+      public void appendLoaded(java.util.List<T> loaded) {
+         ArrayList<String> batch = new ArrayList<String>(loaded.size());
+         for (T object : loaded) {
+            String id = idTable.intern(id(object));
+            if (!cache.containsKey(id)) {
+               store(id, object, false);
+               // came from disk
+               unsaved.remove(id);
+            }
+            if (!dedupe || !reference.contains(id)) {
+               batch.add(id);
+               // linked right away so that repeats within the chunk get caught too
+               linked(id);
+            }
+         }
+         int start = ids.size();
+         ids.addAll(batch);
+         appended(start, batch);
+         trimToMaxSize(null);
+      }
+
+      /**
+       * @return true if some of the restored items haven't been fetched yet
+       */
+      public boolean isPartiallyLoaded() {
+         return unresolved != null;
+      }
+
+      private T resolve(String id, T object) {
+         ConcurrentHashMap<String, Boolean> pending = unresolved;
+         if (pending == null)
+            return object;
+         int index = indexOfId(id);
+         if (object == null && pending.containsKey(id)) {
+            fetch(index < 0 ? Collections.singletonList(id) : pageFrom(index));
+            object = peek(id);
+         }
+         if (index >= 0 && prefetchDistance > 0) {
+            prefetch(index + prefetchDistance);
+         }
+         return object;
+      }
+
+      private java.util.List<String> pageFrom(int index) {
+         ConcurrentHashMap<String, Boolean> pending = unresolved;
+         ArrayList<String> page = new ArrayList<String>(pageSize);
+         if (pending == null)
+            return page;
+         java.util.List<String> snapshot = ids.snapshot();
+         for (int i = index; i < snapshot.size() && page.size() < pageSize; i++) {
+            String id = snapshot.get(i);
+            if (pending.containsKey(id))
+               page.add(id);
+         }
+         return page;
+      }
+
+      private void prefetch(final int index) {
+         ConcurrentHashMap<String, Boolean> pending = unresolved;
+         IdSequence current = ids;
+         if (pending == null || index >= current.size() || !pending.containsKey(current.get(index)))
+            return;
+         if (!prefetching.compareAndSet(false, true))
+            return;
+         scheduler().execute(new Runnable() {
+            @Override public void run() {
+               try {
+                  fetch(pageFrom(index));
+               } finally {
+                  prefetching.set(false);
+               }
+            }
+         });
+      }
+
+      private void fetch(java.util.List<String> page) {
+         TransportLayer transportLayer = transportLayer();
+         synchronized (fetchLock) {
+            ConcurrentHashMap<String, Boolean> pending = unresolved;
+            if (pending == null)
+               return;
+            ArrayList<String> missing = new ArrayList<String>(page.size());
+            for (String id : page) {
+               if (pending.containsKey(id))
+                  missing.add(id);
+            }
+            if (missing.isEmpty())
+               return;
+            if (transportLayer instanceof LazyTransportLayer) {
+               java.util.List fetched = ((LazyTransportLayer) transportLayer).fetchSync(this, missing);
+               if (fetched != null) {
+                  for (Object object : fetched) {
+                     String id = id((T) object);
+                     // don't replace items that got to cache meanwhile, they're fresher
+                     if (!cache.containsKey(id)) {
+                        store(id, (T) object);
+                        unsaved.remove(id);
+                     }
+                  }
+               }
+            }
+            pending.keySet().removeAll(missing);
+            if (pending.isEmpty()) {
+               unresolved = null;
+            }
+         }
+      }
+
+      /**
+       * Fetches all the items that haven't been fetched yet
+       */
+      private void resolveAll() {
+         while (unresolved != null) {
+            ConcurrentHashMap<String, Boolean> pending = unresolved;
+            ArrayList<String> page = new ArrayList<String>(pageSize);
+            for (String id : pending.keySet()) {
+               page.add(id);
+               if (page.size() >= pageSize)
+                  break;
+            }
+            if (page.isEmpty()) {
+               unresolved = null;
+               break;
+            }
+            fetch(page);
+         }
+      }
+
 ////// LIST POLICIES
       private Comparator<T> comparator;
       private boolean dedupe;
+      private boolean ordered;
+      private ConcurrentHashMap<String, Object> keys;
+      private int parallelFilterThreshold = DEFAULT_PARALLEL_FILTER_THRESHOLD;
 
       /**
        * If you wish list to be sorted, provide comparator. If you
@@ -818,8 +2003,24 @@ public abstract class Storage<T> {
        * @param comparator
        */
       public void enableSort(Comparator<T> comparator) {
-         this.comparator = comparator;
+         setComparator(comparator);
+         this.ordered = false;
+         sort();
+      }
+
+      /**
+       * Same as {@link #enableSort(Comparator)} but the list is kept ordered
+       * all the time: single items are binary inserted and batches merged in,
+       * rather than sorting the whole list after every change. Locations passed
+       * to add methods are ignored, equal items keep insertion order. Pushed
+       * items get moved if their position changed.
+       * @param comparator
+       */
+      public void enableOrderedInsert(Comparator<T> comparator) {
+         this.ordered = false;
+         setComparator(comparator);
          sort();
+         this.ordered = comparator != null;
       }
 
       /**
@@ -831,85 +2032,321 @@ public abstract class Storage<T> {
       public void enableDedupe(boolean dedupe) {
          this.dedupe = dedupe;
          if (dedupe && ids.size() > 1) {
-            CopyOnWriteArrayList<String> tmp = new CopyOnWriteArrayList<String>();
-            for (String id : ids) {
-               if (!tmp.contains(id)) {
-                  tmp.add(id);
-               }
-            }
-            ids = tmp;
+            replaceIds(new IdSequence(idTable, new LinkedHashSet<String>(ids)));
          }
       }
 
       private void sort() {
-         sortSelf(this.comparator);
+         if (!ordered)
+            sortSelf(this.comparator);
       }
 
       public void sortSelf(final Comparator<T> comparator) {
          if (comparator == null)
             return;
+         if (keys != null && comparator == this.comparator && ((KeyComparator<T>) comparator).longKey != null) {
+            sortByLongKeys();
+            return;
+         }
          ArrayList<String> mutableIds = new ArrayList<String>(ids);
-         Collections.sort(mutableIds, new Comparator<String>() {
-            @Override
-            public int compare(String lhs, String rhs) {
-               T tLhs = get(lhs);
-               T tRhs = get(rhs);
-               return comparator.compare(tLhs, tRhs);
-            }
-         });
-         ids.clear();
-         ids.addAll(mutableIds);
+         Collections.sort(mutableIds, idComparator(comparator));
+         reordered(mutableIds);
       }
 
       /**
-       * Trim list to the given size.
-       * @param size
+       * @return comparator set by {@link #enableSort(Comparator)} or {@link #enableOrderedInsert(Comparator)}
        */
-      public void trim(int size) {
-         CopyOnWriteArrayList<String> trimmed = new CopyOnWriteArrayList<String>();
-         trimmed.addAll(ids.subList(0, Math.min(ids.size(), size)));
-         ids = trimmed;
-         subscribers.updateAll(Subscription.TRIM);
+      public Comparator<T> getComparator() {
+         return comparator;
       }
 
-      /**
-       * Same as {@link #trim(int)} just happens at the end.
-       * @param size
-       * @return removed items count
-       */
-      public int trimAtEnd(int size) {
-         int removedCount = 0;
-         CopyOnWriteArrayList<String> trimmed = new CopyOnWriteArrayList<String>();
-         trimmed.addAll(ids.subList(Math.max(0, ids.size() - size), ids.size()));
-         removedCount = ids.size() - trimmed.size();
-         ids = trimmed;
-         subscribers.updateAll(Subscription.TRIM_AT_END);
-         return removedCount;
+      private void setComparator(Comparator<T> comparator) {
+         this.comparator = comparator;
+         this.keys = comparator instanceof KeyComparator ? new ConcurrentHashMap<String, Object>() : null;
       }
 
       /**
-       * Keeps size elements at the beginning and the end of the list
-       * making a gap in the middle
-       * @param size
-       * @return
+       * Sorts cached primitive keys, objects aren't touched unless
+       * their key isn't known yet.
        */
-      public int makeGap(int size) {
-         int n = ids.size();
-         int gapSize = n - 2*size;
-         if (gapSize <= 0)
-            return 0;
-         java.util.List<String> start = ids.subList(0, size);
-         java.util.List<String> end = ids.subList(n-size, n);
-         CopyOnWriteArrayList<String> newIds = new CopyOnWriteArrayList<String>();
-         newIds.addAll(start);
-         newIds.addAll(end);
-         ids = newIds;
-         return gapSize;
+      private void sortByLongKeys() {
+         KeyComparator<T> c = (KeyComparator<T>) comparator;
+         String[] snapshot = ids.toArray(new String[ids.size()]);
+         long[] values = new long[snapshot.length];
+         ConcurrentHashMap<String, Object> fresh = new ConcurrentHashMap<String, Object>();
+         for (int i = 0; i < snapshot.length; i++) {
+            Object key = keyOf(snapshot[i]);
+            if (key != null)
+               fresh.put(snapshot[i], key);
+            values[i] = key == null ? Long.MIN_VALUE : (Long) key;
+         }
+         int[] order = KeyComparator.sortedOrder(values, c.descending);
+         ArrayList<String> mutableIds = new ArrayList<String>(snapshot.length);
+         for (int i : order) {
+            mutableIds.add(snapshot[i]);
+         }
+         reordered(mutableIds);
+         keys = fresh; // drops keys of ids that are gone
       }
 
-      /**
-       * Causes notifications not to be propagated to subscribers
-       */
+      private Object keyOf(String id) {
+         ConcurrentHashMap<String, Object> cached = keys;
+         Object key = cached.get(id);
+         if (key == null) {
+            T t = get(id);
+            key = t == null ? null : ((KeyComparator<T>) comparator).extract(t);
+            if (key != null)
+               cached.put(id, key);
+         }
+         return key;
+      }
+
+      /**
+       * Stores the object and refreshes its cached sort key
+       * @return interned id
+       */
+      private String store(String id, T object) {
+         return store(id, object, true);
+      }
+
+      /**
+       * @param trim false for batches, see {@link #addOrUpdate(String, Object, boolean)}
+       */
+      private String store(String id, T object, boolean trim) {
+         id = idTable.intern(id);
+         T previous = addOrUpdate(id, object, trim);
+         if (previous != null && previous != object) {
+            // a new version might belong elsewhere in other ordered lists
+            for (List list : listsContaining(id)) {
+               if (list != this && list.ordered) {
+                  list.reposition(id);
+                  list.subscribers.updateAll(new Subscription.Action(Subscription.PUSH).param("objectId", id));
+               }
+            }
+         }
+         ConcurrentHashMap<String, Object> cached = keys;
+         if (cached != null) {
+            Object key = ((KeyComparator<T>) comparator).extract(object);
+            if (key != null) {
+               cached.put(id, key);
+            } else {
+               cached.remove(id);
+            }
+         }
+         return id;
+      }
+
+      private void forgetKey(String id) {
+         ConcurrentHashMap<String, Object> cached = keys;
+         if (cached != null) {
+            cached.remove(id);
+         }
+      }
+
+      /**
+       * Pushed items might have new sort keys & positions
+       * @param pushedIds
+       */
+      void pushed(Collection<String> pushedIds) {
+         ConcurrentHashMap<String, Object> cached = keys;
+         if (cached != null) {
+            for (String id : pushedIds) {
+               cached.remove(id);
+            }
+         }
+         if (!ordered)
+            return;
+         if (pushedIds.size() == 1) {
+            reposition(pushedIds.iterator().next());
+            return;
+         }
+         // take them all out and merge them back in
+         HashSet<String> pushedSet = new HashSet<String>(pushedIds);
+         ArrayList<String> rest = new ArrayList<String>(ids.size());
+         ArrayList<String> moved = new ArrayList<String>(pushedSet.size());
+         for (String id : ids) {
+            (pushedSet.contains(id) ? moved : rest).add(id);
+         }
+         ids = new IdSequence(idTable, merge(rest, moved));
+         invalidatePositions();
+      }
+
+      private Comparator<String> idComparator(final Comparator<T> comparator) {
+         if (keys != null && comparator == this.comparator) {
+            final KeyComparator<T> c = (KeyComparator<T>) comparator;
+            return new Comparator<String>() {
+               @Override
+               public int compare(String lhs, String rhs) {
+                  return c.compareKeys(keyOf(lhs), keyOf(rhs));
+               }
+            };
+         }
+         return new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+               T tLhs = get(lhs);
+               T tRhs = get(rhs);
+               return comparator.compare(tLhs, tRhs);
+            }
+         };
+      }
+
+      /**
+       * Adds ids at the given location, -1 meaning the end. Ordered
+       * lists merge them in instead, swapping the array just once.
+       * @param location
+       * @param batch
+       */
+      void insertIds(int location, ArrayList<String> batch) {
+         if (batch.isEmpty())
+            return;
+         if (ordered) {
+            ids = new IdSequence(idTable, merge(ids, batch));
+            invalidatePositions();
+         } else if (location < 0) {
+            int start = ids.size();
+            ids.addAll(batch);
+            appended(start, batch);
+         } else {
+            ids.addAll(location, batch);
+            invalidatePositions();
+         }
+         linked(batch);
+      }
+
+      /**
+       * Merges a batch into already ordered ids in O(n+m), the batch
+       * itself gets sorted first.
+       * @param sorted
+       * @param batch
+       * @return
+       */
+      private ArrayList<String> merge(java.util.List<String> sorted, ArrayList<String> batch) {
+         Comparator<String> c = idComparator(comparator);
+         Collections.sort(batch, c);
+         ArrayList<String> merged = new ArrayList<String>(sorted.size() + batch.size());
+         Iterator<String> it = sorted.iterator();
+         String next = it.hasNext() ? it.next() : null;
+         for (String id : batch) {
+            while (next != null && c.compare(next, id) <= 0) {
+               merged.add(next);
+               next = it.hasNext() ? it.next() : null;
+            }
+            merged.add(id);
+         }
+         if (next != null) {
+            merged.add(next);
+            while (it.hasNext()) {
+               merged.add(it.next());
+            }
+         }
+         return merged;
+      }
+
+      /**
+       * @return index after the last item not greater than the given one
+       */
+      private int insertionPoint(java.util.List<String> sorted, String id) {
+         Comparator<String> c = idComparator(comparator);
+         int low = 0;
+         int high = sorted.size();
+         while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (c.compare(sorted.get(mid), id) <= 0) {
+               low = mid + 1;
+            } else {
+               high = mid;
+            }
+         }
+         return low;
+      }
+
+      /**
+       * Moves a pushed item if it's no longer in order
+       * @param id
+       */
+      void reposition(String id) {
+         if (!ordered)
+            return;
+         int index = indexOfId(id);
+         if (index < 0 || isInOrder(index))
+            return;
+         ArrayList<String> newIds = new ArrayList<String>(ids.size());
+         int count = 0;
+         for (String _id : ids) {
+            if (_id.equals(id)) {
+               count++;
+            } else {
+               newIds.add(_id);
+            }
+         }
+         int position = insertionPoint(newIds, id);
+         for (int i = 0; i < count; i++) {
+            newIds.add(position, id);
+         }
+         ids = new IdSequence(idTable, newIds);
+         invalidatePositions();
+      }
+
+      private boolean isInOrder(int index) {
+         Comparator<String> c = idComparator(comparator);
+         IdSequence snapshot = ids;
+         if (index >= snapshot.size())
+            return false;
+         String id = snapshot.get(index);
+         return (index == 0 || c.compare(snapshot.get(index - 1), id) <= 0)
+            && (index == snapshot.size() - 1 || c.compare(id, snapshot.get(index + 1)) <= 0);
+      }
+
+      /**
+       * Trim list to the given size.
+       * @param size
+       */
+      public void trim(int size) {
+         java.util.List<String> before = snapshotIfObserved();
+         IdSequence current = ids;
+         IdSequence trimmed = current.slice(0, Math.min(current.size(), size));
+         replaceIds(trimmed);
+         subscribers.updateAll(withDiff(new Subscription.Action(Subscription.TRIM), before));
+      }
+
+      /**
+       * Same as {@link #trim(int)} just happens at the end.
+       * @param size
+       * @return removed items count
+       */
+      public int trimAtEnd(int size) {
+         int removedCount = 0;
+         java.util.List<String> before = snapshotIfObserved();
+         IdSequence current = ids;
+         IdSequence trimmed = current.slice(Math.max(0, current.size() - size), current.size());
+         removedCount = current.size() - trimmed.size();
+         replaceIds(trimmed);
+         subscribers.updateAll(withDiff(new Subscription.Action(Subscription.TRIM_AT_END), before));
+         return removedCount;
+      }
+
+      /**
+       * Keeps size elements at the beginning and the end of the list
+       * making a gap in the middle
+       * @param size
+       * @return
+       */
+      public int makeGap(int size) {
+         IdSequence current = ids;
+         int n = current.size();
+         int gapSize = n - 2*size;
+         if (gapSize <= 0)
+            return 0;
+         IdSequence newIds = current.slice(0, size);
+         newIds.addAll(current.slice(n-size, n));
+         replaceIds(newIds);
+         return gapSize;
+      }
+
+      /**
+       * Causes notifications not to be propagated to subscribers
+       */
       public void mute() {
          subscribers.mute();
       }
@@ -928,7 +2365,7 @@ public abstract class Storage<T> {
        */
       public List transaction() {
          List list = new List(this);
-         transactions.add(new WeakEqualReference<List>(list));
+         transactions.add(list.reference);
          return list;
       }
 
@@ -941,9 +2378,10 @@ public abstract class Storage<T> {
 
       public void commit(Subscription.Action action) {
          if (transaction != null) {
-            transaction.ids = ids;
+            java.util.List<String> before = transaction.snapshotIfObserved();
+            transaction.replaceIds(ids.copy());
             transaction.meta = meta;
-            transaction.subscribers.updateAll(action);
+            transaction.subscribers.updateAll(transaction.withDiff(action, before));
          }
          endTransaction();
       }
@@ -952,7 +2390,8 @@ public abstract class Storage<T> {
        * Ends the transaction, removes the temporary list from the tracked lists
        */
       public void endTransaction() {
-         transactions.remove(new WeakEqualReference<List>(this));
+         transactions.remove(reference);
+         reference.releaseAll();
       }
 
       /**
@@ -974,7 +2413,7 @@ public abstract class Storage<T> {
       public boolean ensureConsistence() {
          for (String id : ids) {
             if (get(id) == null) {
-               ids.clear();
+               replaceIds(new IdSequence(idTable));
                subscribers.updateAll(Subscription.CLEAR);
                return false;
             }
@@ -1001,8 +2440,52 @@ public abstract class Storage<T> {
        * @param id
        * @return
        */
+      String idAt(int index) {
+         return ids.get(index);
+      }
+
+      void removeAt(int index) {
+         String id = ids.remove(index);
+         unlinked(id);
+         removedAt(index, id);
+      }
+
       public int indexOfId(String id) {
-         return ids.indexOf(id);
+         if (id == null || !reference.contains(id))
+            return -1;
+         ConcurrentHashMap<String, Integer> index = positions;
+         if (index != null) {
+            Integer position = index.get(id);
+            if (position != null && isAt(id, position))
+               return position;
+            // entry dropped along with an earlier occurrence
+            int found = ids.indexOf(id);
+            if (found >= 0)
+               index.put(id, found);
+            return found;
+         }
+         // a handle scan costs about as much as a rebuild, the index only
+         // pays off once the list keeps getting looked up between changes
+         if (++scans <= SCANS_BEFORE_INDEX)
+            return ids.indexOf(id);
+         index = new ConcurrentHashMap<String, Integer>();
+         int i = 0;
+         for (String _id : ids) {
+            if (!index.containsKey(_id))
+               index.put(_id, i);
+            i++;
+         }
+         positions = index;
+         Integer position = index.get(id);
+         return position == null ? -1 : position;
+      }
+
+      private boolean isAt(String id, int position) {
+         try {
+            return id.equals(ids.get(position));
+         } catch (IndexOutOfBoundsException e) {
+            return false;
+         }
       }
 
       /**
@@ -1010,8 +2493,8 @@ public abstract class Storage<T> {
        * @return Item of the given id or null.
        */
       public T getById(String id) {
-         if (ids.contains(id))
-            return get(id);
+         if (id != null && reference.contains(id))
+            return access(id);
          else
             return null;
       }
@@ -1023,25 +2506,851 @@ public abstract class Storage<T> {
          subscribers.updateAll(action);
       }
 
+      private void linked(String id) {
+         reference.add(id);
+      }
+
+      private void linked(Collection<String> addedIds) {
+         for (String id : addedIds) {
+            reference.add(id);
+         }
+      }
+
+      private void unlinked(String id) {
+         reference.remove(id);
+      }
+
+      private void appended(String id) {
+         ConcurrentHashMap<String, Integer> index = positions;
+         if (index != null && !index.containsKey(id))
+            index.put(id, ids.size() - 1);
+      }
+
+      private void appended(int start, Collection<String> batch) {
+         ConcurrentHashMap<String, Integer> index = positions;
+         if (index == null)
+            return;
+         int i = start;
+         for (String id : batch) {
+            if (!index.containsKey(id))
+               index.put(id, i);
+            i++;
+         }
+      }
+
+      /**
+       * Moves the index entries behind an inserted id one up
+       * @param location
+       * @param id
+       */
+      private void insertedAt(int location, String id) {
+         ConcurrentHashMap<String, Integer> index = positions;
+         if (index == null)
+            return;
+         int i = location + 1;
+         String previous = id;
+         for (String _id : ids.subList(i, ids.size())) {
+            Integer position = index.get(_id);
+            // a repeat right behind its first occurrence is moved already
+            if (position != null && position == i - 1 && !_id.equals(previous))
+               index.put(_id, i);
+            previous = _id;
+            i++;
+         }
+         Integer position = index.get(id);
+         if (position == null || position > location)
+            index.put(id, location);
+      }
+
+      /**
+       * Moves the index entries behind a removed id one down
+       * @param location
+       * @param id
+       */
+      private void removedAt(int location, String id) {
+         ConcurrentHashMap<String, Integer> index = positions;
+         if (index == null)
+            return;
+         Integer position = index.get(id);
+         if (position != null && position == location)
+            index.remove(id);
+         int i = location;
+         for (String _id : ids.subList(i, ids.size())) {
+            position = index.get(_id);
+            if (position != null && position == i + 1)
+               index.put(_id, i);
+            i++;
+         }
+      }
+
+      /**
+       * Takes the sorted ids unless the order stayed the same
+       * @param sorted
+       */
+      private void reordered(ArrayList<String> sorted) {
+         if (sorted.equals(ids))
+            return;
+         ids = new IdSequence(idTable, sorted);
+         invalidatePositions();
+      }
+
+      private void invalidatePositions() {
+         positions = null;
+         scans = 0;
+      }
+
+      /**
+       * Swaps the backing ids and updates reference counts & membership
+       * index for whatever got in or out.
+       * @param newIds
+       */
+      void replaceIds(IdSequence newIds) {
+         ids = newIds;
+         invalidatePositions();
+         reference.replace(newIds);
+      }
+
+      /**
+       * Ids before a bulk change, only taken if someone's going to get the diff
+       */
+      java.util.List<String> snapshotIfObserved() {
+         return subscribers.isObserved() ? ids.snapshot() : null;
+      }
+
+      /**
+       * Attaches {@link ListDiff} between the given ids and the current ones
+       * under "diff" param.
+       */
+      Subscription.Action withDiff(Subscription.Action action, java.util.List<String> before) {
+         if (before != null && action.param("diff") == null) {
+            action.param("diff", ListDiff.compute(before, ids));
+         }
+         return action;
+      }
+
       public List filter(Query query) {
          List list = this.transaction();
          list.filterSelf(query);
          return list;
       }
 
+      /**
+       * Lists of at least this many items are filtered in parallel
+       * @param threshold
+       */
+      public void setParallelFilterThreshold(int threshold) {
+         this.parallelFilterThreshold = threshold;
+      }
+
       public List filterSelf(Query query) {
          if (query == null)
             return this;
-         CopyOnWriteArrayList<String> newIds = new CopyOnWriteArrayList<String>();
-         for (T t : this) {
-            if (query.eval(t)) {
-               newIds.add(id(t));
+         java.util.List<String> before = snapshotIfObserved();
+         IdSequence current = ids.copy();
+         boolean[] matches = new boolean[current.size()];
+         if (matches.length >= parallelFilterThreshold) {
+            filterParallel(current.snapshot(), query, matches);
+         } else {
+            int i = 0;
+            for (String id : current) {
+               T t = get(id);
+               matches[i++] = t != null && query.eval(t);
             }
          }
-         this.ids = newIds;
-         subscribers.updateAll(Subscription.RELOAD_QUERY);
+         replaceIds(current.select(matches));
+         subscribers.updateAll(withDiff(new Subscription.Action(Subscription.RELOAD_QUERY), before));
          return this;
       }
+
+      /**
+       * Splits the ids into chunks for {@link #filterPool()}, the calling
+       * thread evaluates the last chunk and waits for the others
+       */
+      private void filterParallel(java.util.List<String> snapshot, Query query, boolean[] matches) {
+         int chunks = Math.max(1, Math.min(FILTER_THREADS * 4, matches.length / FILTER_CHUNK_SIZE));
+         int chunkSize = (matches.length + chunks - 1) / chunks;
+         ArrayList<Future<?>> pending = new ArrayList<Future<?>>(chunks);
+         int from = 0;
+         for (; from + chunkSize < matches.length; from += chunkSize) {
+            pending.add(filterPool().submit(new Filter(snapshot, query, matches, from, from + chunkSize)));
+         }
+         new Filter(snapshot, query, matches, from, matches.length).run();
+         boolean interrupted = false;
+         try {
+            for (Future<?> chunk : pending) {
+               while (true) {
+                  try {
+                     chunk.get();
+                     break;
+                  } catch (InterruptedException e) {
+                     // matches aren't complete before every chunk is done
+                     interrupted = true;
+                  } catch (ExecutionException e) {
+                     Throwable cause = e.getCause();
+                     if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                     if (cause instanceof Error)
+                        throw (Error) cause;
+                     throw new RuntimeException(cause);
+                  }
+               }
+            }
+         } finally {
+            if (interrupted)
+               Thread.currentThread().interrupt();
+         }
+      }
+
+      /**
+       * Evaluates a query over a range of ids
+       */
+      private class Filter implements Runnable {
+         private final java.util.List<String> snapshot;
+         private final Query query;
+         private final boolean[] matches;
+         private final int from;
+         private final int to;
+
+         Filter(java.util.List<String> snapshot, Query query, boolean[] matches, int from, int to) {
+            this.snapshot = snapshot;
+            this.query = query;
+            this.matches = matches;
+            this.from = from;
+            this.to = to;
+         }
+
+         @Override public void run() {
+            Iterator<String> it = snapshot.subList(from, to).iterator();
+            for (int i = from; i < to; i++) {
+               T t = List.this.get(it.next());
+               matches[i] = t != null && query.eval(t);
+            }
+         }
+      }
+
+      /**
+       * Unlike {@link #filter(Query)} the returned list stays up to date, see {@link FilteredList}.
+       * @param query
+       * @return
+       */
+      public FilteredList liveFilter(Query<T> query) {
+         return new FilteredList(this, query);
+      }
+
+      /**
+       * Live view of the list split into sections, see {@link SectionedList}.
+       * @param sectionKey
+       * @return
+       */
+      public SectionedList sectioned(ComparableKey<T> sectionKey) {
+         return new SectionedList(this, sectionKey);
+      }
+   }
+
+   /**
+    * Collects ids listed by the action
+    * @return false if the action doesn't tell which ids changed
+    */
+   static boolean affectedIds(Subscription.Action action, Set<String> out) {
+      String name = action.name;
+      if (Subscription.CLEAR.equals(name)
+         || Subscription.REMOVE_ALL.equals(name)
+         || Subscription.RETAIN_ALL.equals(name)
+         || Subscription.RELOAD_QUERY.equals(name))
+         return false;
+      int count = out.size();
+      Object objectId = action.param("objectId");
+      if (objectId instanceof String)
+         out.add((String) objectId);
+      Object objectIds = action.param("objectIds");
+      if (objectIds instanceof Collection)
+         out.addAll((Collection<String>) objectIds);
+      Object diff = action.param("diff");
+      if (diff instanceof ListDiff) {
+         for (ListDiff.Change change : ((ListDiff) diff).changes) {
+            out.addAll(change.ids);
+         }
+      }
+      Object actions = action.param("actions");
+      if (actions instanceof Collection) {
+         for (Object nested : (Collection) actions) {
+            if (!affectedIds((Subscription.Action) nested, out))
+               return false;
+         }
+      }
+      // no ids and no diff, nothing to go by
+      return out.size() > count || diff instanceof ListDiff || Subscription.PUSH.equals(name);
+   }
+
+   /**
+    * Live view of the items of a source {@link List} matching a {@link Query}.
+    * It listens to the source and re-evaluates the query just for the ids
+    * affected by each change, actions not listing ids trigger a full refilter.
+    * The view keeps the source's order and has its own subscribers, every
+    * source change affecting it is published under the same action name along
+    * with changed "objectIds" and a "diff". Duplicates are listed once.
+    * The view is read only, it isn't persisted and methods changing it throw
+    * {@link UnsupportedOperationException}, change the source instead.
+    * The source only holds the view weakly, {@link #detach()} stops updates
+    * right away once the view is no longer needed.
+    */
+   public class FilteredList extends List implements Subscription {
+      private final List source;
+      private final Query<T> query;
+      private final WeakSubscription subscription;
+
+      private FilteredList(List source, Query<T> query) {
+         super(source.getName() + DOT + "filtered", false);
+         this.source = source;
+         this.query = query;
+         synchronized (this) {
+            refilter(new Subscription.Action(Subscription.RELOAD_QUERY));
+         }
+         subscription = new WeakSubscription(this, source);
+         source.subscribe(subscription);
+      }
+
+      public List getSource() {
+         return source;
+      }
+
+      /**
+       * Stops following the source list
+       */
+      public void detach() {
+         source.unsubscribe(subscription);
+      }
+
+      private UnsupportedOperationException readOnly() {
+         return new UnsupportedOperationException("Filtered list follows " + source.getName() + ", change that one instead");
+      }
+
+      @Override public Future<Boolean> load() { throw readOnly(); }
+      @Override public boolean loadSync() { throw readOnly(); }
+      @Override public Future<Boolean> save() { throw readOnly(); }
+      @Override public boolean saveSync() { throw readOnly(); }
+      @Override public boolean saveSync(int limit) { throw readOnly(); }
+      @Override public Future<Boolean> loadIds() { throw readOnly(); }
+      @Override public boolean loadIdsSync() { throw readOnly(); }
+      @Override public boolean add(T object) { throw readOnly(); }
+      @Override public void add(int location, T object) { throw readOnly(); }
+      @Override int insert(int location, T object) { throw readOnly(); }
+      @Override public boolean addAll(Collection<? extends T> collection) { throw readOnly(); }
+      @Override public boolean addAll(int location, Collection<? extends T> collection) { throw readOnly(); }
+      @Override public boolean addUpFront(Collection<? extends T> collection, HashMap<String, Object> params) { throw readOnly(); }
+      @Override public void clear() { throw readOnly(); }
+      @Override public T remove(int location) { throw readOnly(); }
+      @Override public T removeById(String id) { throw readOnly(); }
+      @Override public boolean remove(Object object) { throw readOnly(); }
+      @Override public boolean removeAll(Collection<?> collection) { throw readOnly(); }
+      @Override public boolean retainAll(Collection<?> collection) { throw readOnly(); }
+      @Override public T set(int location, T object) { throw readOnly(); }
+      @Override public void restore(java.util.List<String> restoredIds, HashMap<String, Object> meta) { throw readOnly(); }
+      @Override public void appendLoaded(java.util.List<T> loaded) { throw readOnly(); }
+      @Override public void enableSort(Comparator<T> comparator) { throw readOnly(); }
+      @Override public void enableOrderedInsert(Comparator<T> comparator) { throw readOnly(); }
+      @Override public void enableDedupe(boolean dedupe) { throw readOnly(); }
+      @Override public void sortSelf(Comparator<T> comparator) { throw readOnly(); }
+      @Override public void trim(int size) { throw readOnly(); }
+      @Override public int trimAtEnd(int size) { throw readOnly(); }
+      @Override public int makeGap(int size) { throw readOnly(); }
+      @Override public List transaction() { throw readOnly(); }
+      @Override public List filterSelf(Query query) { throw readOnly(); }
+
+      @Override public synchronized void onUpdate(Action action) {
+         LinkedHashSet<String> affected = new LinkedHashSet<String>();
+         if (!affectedIds(action, affected)) {
+            refilter(new Subscription.Action(action.name));
+            return;
+         }
+         java.util.List<String> before = snapshotIfObserved();
+         ArrayList<String> changed = new ArrayList<String>();
+         ArrayList<String> matching = new ArrayList<String>();
+
+         // drop what no longer matches or got out of place first so that
+         // every id left in the view has a valid position in the source
+         for (String id : affected) {
+            int sourceIndex = source.indexOfId(id);
+            T item = sourceIndex < 0 ? null : peek(id);
+            boolean match = item != null && query.eval(item);
+            int index = indexOfId(id);
+            if (index >= 0 && (!match || !isPlaced(index, sourceIndex))) {
+               removeAt(index);
+               changed.add(id);
+            } else if (index >= 0 && Subscription.PUSH.equals(action.name)) {
+               // stays in place but its content changed
+               changed.add(id);
+            }
+            if (match) {
+               matching.add(id);
+            }
+         }
+         for (String id : matching) {
+            if (indexOfId(id) >= 0)
+               continue;
+            int location = insertionPoint(source.indexOfId(id));
+            insertIds(location, new ArrayList<String>(Collections.singletonList(id)));
+            if (!changed.contains(id))
+               changed.add(id);
+         }
+         if (!changed.isEmpty()) {
+            subscribers.updateAll(withDiff(new Subscription.Action(action.name).param("objectIds", changed), before));
+         }
+      }
+
+      private void refilter(Subscription.Action action) {
+         java.util.List<String> before = snapshotIfObserved();
+         LinkedHashSet<String> newIds = new LinkedHashSet<String>();
+         for (String id : source.ids()) {
+            T item = peek(id);
+            if (item != null && query.eval(item))
+               newIds.add(id);
+         }
+         replaceIds(new IdSequence(idTable, newIds));
+         subscribers.updateAll(withDiff(action, before));
+      }
+
+      private boolean isPlaced(int index, int sourceIndex) {
+         if (index > 0 && source.indexOfId(idAt(index - 1)) > sourceIndex)
+            return false;
+         return index >= size() - 1 || source.indexOfId(idAt(index + 1)) < 0
+            || source.indexOfId(idAt(index + 1)) > sourceIndex;
+      }
+
+      /**
+       * @return position in the view for an item at the given source position
+       */
+      private int insertionPoint(int sourceIndex) {
+         int low = 0;
+         int high = size();
+         while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (source.indexOfId(idAt(mid)) < sourceIndex) {
+               low = mid + 1;
+            } else {
+               high = mid;
+            }
+         }
+         return low;
+      }
+   }
+
+   /**
+    * Live view of a source {@link List} split into sections of items sharing
+    * a key, e.g. a day or an owner. Sections are ordered by their first item's
+    * position in the source and keep the source's order within. Only ids
+    * affected by a source change get regrouped, subscribers then receive an
+    * action named after the source change with section level params:
+    * "insertedSections" and "removedSections" list section keys,
+    * "changedSections" maps keys of other touched sections to their {@link ListDiff}.
+    * Actions not listing ids regroup everything and come with "reloaded" set.
+    * The source only holds the view weakly, {@link #detach()} stops updates
+    * right away once the view is no longer needed.
+    */
+   public class SectionedList implements Subscription {
+      private final List source;
+      private final WeakSubscription subscription;
+      private final ComparableKey<T> sectionKey;
+      private final ArrayList<Section> sections = new ArrayList<Section>();
+      private final HashMap<Object, Section> sectionsByKey = new HashMap<Object, Section>();
+      private final HashMap<String, Object> keysById = new HashMap<String, Object>();
+      private final Subscribers subscribers = new Subscribers();
+
+      /**
+       * Ids of one section
+       */
+      public class Section {
+         public final Object key;
+         private final IdSequence sectionIds = new IdSequence(idTable);
+
+         private Section(Object key) {
+            this.key = key;
+         }
+
+         public int size() {
+            return sectionIds.size();
+         }
+
+         public T get(int location) {
+            return Storage.this.get(sectionIds.get(location));
+         }
+
+         /**
+          * @return snapshot of the section's ids
+          */
+         public java.util.List<String> ids() {
+            return sectionIds.snapshot();
+         }
+
+         private int firstSourceIndex() {
+            return sectionIds.isEmpty() ? Integer.MAX_VALUE : source.indexOfId(sectionIds.get(0));
+         }
+
+         /**
+          * @return where the id goes to keep the source order
+          */
+         private int insertionPoint(int sourceIndex) {
+            int low = 0;
+            int high = sectionIds.size();
+            while (low < high) {
+               int mid = (low + high) >>> 1;
+               if (source.indexOfId(sectionIds.get(mid)) < sourceIndex) {
+                  low = mid + 1;
+               } else {
+                  high = mid;
+               }
+            }
+            return low;
+         }
+
+         private boolean isPlaced(int index, int sourceIndex) {
+            if (index > 0 && source.indexOfId(sectionIds.get(index - 1)) > sourceIndex)
+               return false;
+            return index >= sectionIds.size() - 1 || source.indexOfId(sectionIds.get(index + 1)) < 0
+               || source.indexOfId(sectionIds.get(index + 1)) > sourceIndex;
+         }
+      }
+
+      private SectionedList(List source, ComparableKey<T> sectionKey) {
+         this.source = source;
+         this.sectionKey = sectionKey;
+         subscribers.coalesce(notificationWindow);
+         subscribers.deliverOn(notificationExecutor, notificationQueueSize);
+         synchronized (this) {
+            regroup();
+         }
+         subscription = new WeakSubscription(this, source);
+         source.subscribe(subscription);
+      }
+
+      public List getSource() {
+         return source;
+      }
+
+      public void subscribe(Subscription subscription) {
+         subscribers.addSubscriber(subscription);
+      }
+
+      public void unsubscribe(Subscription subscription) {
+         subscribers.removeSubscriber(subscription);
+      }
+
+      /**
+       * Stops following the source list
+       */
+      public void detach() {
+         source.unsubscribe(subscription);
+      }
+
+      /**
+       * @return current sections in order
+       */
+      public synchronized ArrayList<Section> sections() {
+         return new ArrayList<Section>(sections);
+      }
+
+      public synchronized Section section(Object key) {
+         return sectionsByKey.get(key);
+      }
+
+      @Override public synchronized void onUpdate(Action action) {
+         LinkedHashSet<String> affected = new LinkedHashSet<String>();
+         if (!affectedIds(action, affected)) {
+            regroup();
+            subscribers.updateAll(new Subscription.Action(action.name).param("reloaded", true));
+            return;
+         }
+
+         HashMap<Object, java.util.List<String>> before = new HashMap<Object, java.util.List<String>>();
+         ArrayList<String> present = new ArrayList<String>();
+         ArrayList<Object> removedSections = new ArrayList<Object>();
+         for (String id : affected) {
+            int sourceIndex = source.indexOfId(id);
+            T item = sourceIndex < 0 ? null : peek(id);
+            Object key = item == null ? null : sectionKey.key(item);
+            if (keysById.containsKey(id)) {
+               Object previousKey = keysById.get(id);
+               Section section = sectionsByKey.get(previousKey);
+               int index = section.sectionIds.indexOf(id);
+               if (item == null || !equal(key, previousKey) || !section.isPlaced(index, sourceIndex)) {
+                  if (!before.containsKey(previousKey))
+                     before.put(previousKey, section.ids());
+                  section.sectionIds.remove(index);
+                  keysById.remove(id);
+                  if (section.sectionIds.isEmpty()) {
+                     sections.remove(section);
+                     sectionsByKey.remove(previousKey);
+                     removedSections.add(previousKey);
+                  }
+               }
+            }
+            if (item != null)
+               present.add(id);
+         }
+
+         ArrayList<Object> insertedSections = new ArrayList<Object>();
+         for (String id : present) {
+            if (keysById.containsKey(id))
+               continue;
+            Object key = sectionKey.key(peek(id));
+            Section section = sectionsByKey.get(key);
+            if (section == null) {
+               section = new Section(key);
+               sections.add(section);
+               sectionsByKey.put(key, section);
+               if (!removedSections.remove(key))
+                  insertedSections.add(key);
+            } else if (!before.containsKey(key)) {
+               before.put(key, section.ids());
+            }
+            section.sectionIds.add(section.insertionPoint(source.indexOfId(id)), id);
+            keysById.put(id, key);
+         }
+         sortSections();
+
+         HashMap<Object, ListDiff> changedSections = new HashMap<Object, ListDiff>();
+         for (Map.Entry<Object, java.util.List<String>> e : before.entrySet()) {
+            Section section = sectionsByKey.get(e.getKey());
+            if (section == null || insertedSections.contains(e.getKey()))
+               continue;
+            ListDiff diff = ListDiff.compute(e.getValue(), section.ids());
+            if (!diff.isEmpty())
+               changedSections.put(e.getKey(), diff);
+         }
+         if (insertedSections.isEmpty() && removedSections.isEmpty() && changedSections.isEmpty())
+            return;
+         subscribers.updateAll(new Subscription.Action(action.name)
+            .param("insertedSections", insertedSections)
+            .param("removedSections", removedSections)
+            .param("changedSections", changedSections));
+      }
+
+      private void regroup() {
+         sections.clear();
+         sectionsByKey.clear();
+         keysById.clear();
+         HashMap<Object, ArrayList<String>> grouped = new HashMap<Object, ArrayList<String>>();
+         for (String id : source.ids()) {
+            T item = peek(id);
+            if (item == null || keysById.containsKey(id))
+               continue;
+            Object key = sectionKey.key(item);
+            ArrayList<String> sectionIds = grouped.get(key);
+            if (sectionIds == null) {
+               sectionIds = new ArrayList<String>();
+               grouped.put(key, sectionIds);
+               Section section = new Section(key);
+               sections.add(section);
+               sectionsByKey.put(key, section);
+            }
+            sectionIds.add(id);
+            keysById.put(id, key);
+         }
+         for (Section section : sections) {
+            section.sectionIds.addAll(grouped.get(section.key));
+         }
+      }
+
+      private void sortSections() {
+         Collections.sort(sections, new Comparator<Section>() {
+            @Override public int compare(Section lhs, Section rhs) {
+               int l = lhs.firstSourceIndex();
+               int r = rhs.firstSourceIndex();
+               return l < r ? -1 : (l == r ? 0 : 1);
+            }
+         });
+      }
+
+      private boolean equal(Object a, Object b) {
+         return a == null ? b == null : a.equals(b);
+      }
+   }
+
+   /**
+    * Weak reference to a {@link List} counting occurrences of each id on it.
+    * The counts outlive the list so that its ids can be released once it
+    * gets garbage collected.
+    */
+   class ListReference extends WeakEqualReference<List> {
+      private HashMap<String, Integer> occurrences = new HashMap<String, Integer>();
+      private final boolean indexed;
+      private boolean released;
+
+      ListReference(List list, boolean indexed) {
+         super(list, collectedLists);
+         this.indexed = indexed;
+      }
+
+      synchronized void add(String id) {
+         Integer count = occurrences.get(id);
+         occurrences.put(id, count == null ? 1 : count + 1);
+         if (count == null && !released) {
+            acquire(id);
+            if (indexed) link(id, this);
+         }
+      }
+
+      synchronized void remove(String id) {
+         Integer count = occurrences.get(id);
+         if (count == null)
+            return;
+         if (count > 1) {
+            occurrences.put(id, count - 1);
+            return;
+         }
+         occurrences.remove(id);
+         if (!released) {
+            if (indexed) unlink(id, this);
+            release(id);
+         }
+      }
+
+      synchronized void replace(Collection<String> ids) {
+         HashMap<String, Integer> fresh = new HashMap<String, Integer>();
+         for (String id : ids) {
+            Integer count = fresh.get(id);
+            fresh.put(id, count == null ? 1 : count + 1);
+         }
+         if (!released) {
+            // acquire first so that ids moving around don't hit zero
+            for (String id : fresh.keySet()) {
+               if (!occurrences.containsKey(id)) {
+                  acquire(id);
+                  if (indexed) link(id, this);
+               }
+            }
+            for (String id : occurrences.keySet()) {
+               if (!fresh.containsKey(id)) {
+                  if (indexed) unlink(id, this);
+                  release(id);
+               }
+            }
+         }
+         occurrences = fresh;
+      }
+
+      synchronized boolean contains(String id) {
+         return occurrences.containsKey(id);
+      }
+
+      /**
+       * Gives up the reference counts, the list keeps tracking
+       * its ids for lookups though.
+       */
+      synchronized void releaseAll() {
+         if (released)
+            return;
+         for (String id : occurrences.keySet()) {
+            if (indexed) unlink(id, this);
+            release(id);
+         }
+         released = true;
+      }
+   }
+
+   /**
+    * Decides which items leave the cache first once {@link #maxSize()}
+    * is exceeded. Calls are synchronized on the policy instance.
+    */
+   public interface EvictionPolicy {
+      public void onInsert(String id);
+      public void onAccess(String id);
+      public void onRemove(String id);
+      public void clear();
+
+      /**
+       * @return ids in eviction order, best candidate first
+       */
+      public Iterator<String> candidates();
+   }
+
+   /**
+    * Primitive sort key of an item, e.g. its timestamp
+    */
+   public interface LongKey<T> {
+      long key(T t);
+   }
+
+   /**
+    * Sort key of an item
+    */
+   public interface ComparableKey<T> {
+      Comparable key(T t);
+   }
+
+   /**
+    * Comparator ordering items by an extracted key. When used with
+    * {@link List#enableSort(Comparator)} or {@link List#enableOrderedInsert(Comparator)}
+    * the list caches keys per id so they're only extracted when an item gets
+    * added or pushed, long keys are sorted as primitives.
+    * @param <T>
+    */
+   public static class KeyComparator<T> implements Comparator<T> {
+      final LongKey<T> longKey;
+      final ComparableKey<T> comparableKey;
+      final boolean descending;
+
+      public KeyComparator(LongKey<T> key, boolean descending) {
+         this.longKey = key;
+         this.comparableKey = null;
+         this.descending = descending;
+      }
+
+      public KeyComparator(ComparableKey<T> key, boolean descending) {
+         this.longKey = null;
+         this.comparableKey = key;
+         this.descending = descending;
+      }
+
+      Object extract(T t) {
+         return longKey != null ? Long.valueOf(longKey.key(t)) : comparableKey.key(t);
+      }
+
+      @Override public int compare(T lhs, T rhs) {
+         return compareKeys(lhs == null ? null : extract(lhs), rhs == null ? null : extract(rhs));
+      }
+
+      int compareKeys(Object lhs, Object rhs) {
+         int result;
+         if (lhs == null || rhs == null) {
+            result = lhs == rhs ? 0 : (lhs == null ? -1 : 1);
+         } else {
+            result = ((Comparable) lhs).compareTo(rhs);
+         }
+         return descending ? -result : result;
+      }
+
+      /**
+       * Stable merge sort of indexes by their long keys
+       * @param values
+       * @param descending
+       * @return indexes in sorted order
+       */
+      static int[] sortedOrder(long[] values, boolean descending) {
+         int n = values.length;
+         int[] order = new int[n];
+         int[] buffer = new int[n];
+         for (int i = 0; i < n; i++) {
+            order[i] = i;
+         }
+         for (int width = 1; width < n; width <<= 1) {
+            for (int low = 0; low < n - width; low += width << 1) {
+               int mid = low + width;
+               int high = Math.min(low + (width << 1), n);
+               int i = low, j = mid, k = low;
+               while (i < mid && j < high) {
+                  long a = values[order[i]];
+                  long b = values[order[j]];
+                  boolean takeRight = descending ? b > a : b < a;
+                  buffer[k++] = takeRight ? order[j++] : order[i++];
+               }
+               while (i < mid) buffer[k++] = order[i++];
+               while (j < high) buffer[k++] = order[j++];
+               System.arraycopy(buffer, low, order, low, high - low);
+            }
+         }
+         return order;
+      }
    }
 
    public interface Query<T> {
@@ -1054,6 +3363,27 @@ public abstract class Storage<T> {
    public static class Subscribers {
       private boolean muted;
       private ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
+      private long window = -1;
+      private ArrayList<Subscription.Action> pending;
+      private boolean flushScheduled;
+      private final Runnable flushTask = new Runnable() {
+         @Override public void run() {
+            if (executor != null) {
+               // delivery is handed to the executor already
+               flush();
+            } else {
+               mainThreadExecutor().execute(flushNow);
+            }
+         }
+      };
+      private final Runnable flushNow = new Runnable() {
+         @Override public void run() {
+            flush();
+         }
+      };
+      private volatile Executor executor;
+      private int maxQueued;
+      private final HashMap<Subscription, Queue> queues = new HashMap<Subscription, Queue>();
 
       public void addSubscriber(Subscription subscription) {
          if (!subscriptions.contains(subscription))
@@ -1068,10 +3398,16 @@ public abstract class Storage<T> {
 
       public void removeSubscriber(Subscription subscription) {
          subscriptions.remove(subscription);
+         synchronized (queues) {
+            queues.remove(subscription);
+         }
       }
 
       public void removeAllSubscribers() {
          subscriptions.clear();
+         synchronized (queues) {
+            queues.clear();
+         }
       }
 
       public void updateAll(String actionName) {
@@ -1081,12 +3417,140 @@ public abstract class Storage<T> {
       public void updateAll(Subscription.Action action) {
          if (muted)
             return;
+         if (window < 0) {
+            deliver(action);
+            return;
+         }
+         boolean schedule = false;
+         synchronized (this) {
+            if (pending == null) {
+               pending = new ArrayList<Subscription.Action>();
+               schedule = window > 0 && !flushScheduled;
+               flushScheduled |= schedule;
+            }
+            pending.add(action);
+         }
+         if (schedule) {
+            scheduler().schedule(flushTask, window, TimeUnit.MILLISECONDS);
+         }
+      }
+
+      /**
+       * Instead of notifying subscribers right away, collects actions and
+       * delivers a single merged one (see {@link Subscription.Action#merge(java.util.List)})
+       * per window. Once a window ends merged actions are delivered through the
+       * executor set with {@link #deliverOn(Executor, int)}, or on the main thread
+       * if there's none.
+       * @param window milliseconds to collect actions for, 0 collects until
+       *               {@link #flush()} is called, negative value disables coalescing (default)
+       */
+      public void coalesce(long window) {
+         flush();
+         this.window = window;
+      }
+
+      /**
+       * Delivers pending coalesced actions
+       */
+      public void flush() {
+         ArrayList<Subscription.Action> actions;
+         synchronized (this) {
+            actions = pending;
+            pending = null;
+            flushScheduled = false;
+         }
+         if (actions != null && !actions.isEmpty()) {
+            deliver(Subscription.Action.merge(actions));
+         }
+      }
+
+      /**
+       * Delivers actions through the given executor instead of the thread
+       * making changes. Every subscription gets its own queue, once it holds
+       * maxQueued actions they're collapsed into a merged one.
+       * @param executor null delivers on the calling thread (default)
+       * @param maxQueued queued actions limit per subscription
+       */
+      public void deliverOn(Executor executor, int maxQueued) {
+         this.executor = executor;
+         this.maxQueued = Math.max(1, maxQueued);
+      }
+
+      private void deliver(Subscription.Action action) {
+         Executor executor = this.executor;
          for (Subscription s : (ArrayList<Subscription>)subscriptions.clone()) {
-            if (s != null)
+            if (s == null)
+               continue;
+            if (executor == null) {
                s.onUpdate(action);
+               continue;
+            }
+            Queue queue;
+            synchronized (queues) {
+               queue = queues.get(s);
+               if (queue == null) {
+                  queue = new Queue(s);
+                  queues.put(s, queue);
+               }
+            }
+            if (queue.offer(action, maxQueued))
+               executor.execute(queue);
          }
       }
 
+      /**
+       * Pending actions of a single subscription
+       */
+      private static class Queue implements Runnable {
+         private final Subscription subscription;
+         private final LinkedList<Subscription.Action> actions = new LinkedList<Subscription.Action>();
+         private boolean running;
+
+         Queue(Subscription subscription) {
+            this.subscription = subscription;
+         }
+
+         /**
+          * @return true if the queue needs to be scheduled
+          */
+         synchronized boolean offer(Subscription.Action action, int maxQueued) {
+            actions.add(action);
+            if (actions.size() > maxQueued) {
+               // subscriber is falling behind, collapse what's waiting
+               Subscription.Action merged = Subscription.Action.merge(new ArrayList<Subscription.Action>(actions));
+               actions.clear();
+               actions.add(merged);
+            }
+            if (running)
+               return false;
+            running = true;
+            return true;
+         }
+
+         @Override public void run() {
+            while (true) {
+               Subscription.Action action;
+               synchronized (this) {
+                  action = actions.poll();
+                  if (action == null) {
+                     running = false;
+                     return;
+                  }
+               }
+               try {
+                  subscription.onUpdate(action);
+               } catch (RuntimeException e) {
+                  // don't let a single subscriber jam the queue
+                  Log.e(Subscribers.class.getSimpleName(), "onUpdate() error", e);
+               }
+            }
+         }
+      }
+
+      boolean isObserved() {
+         return !muted && !subscriptions.isEmpty();
+      }
+
       private void mute() {muted = true;}
       private void unmute() {muted = false;}
    }
@@ -1111,6 +3575,8 @@ public abstract class Storage<T> {
       public final static String WILL_CHANGE = "willChange";
       public final static String RELOAD_QUERY = "reloadQuery";
       public final static String DELETE = "delete";
+      public final static String COALESCED = "coalesced";
+      public final static String AGGREGATE = "aggregate";
 
       public static class Action {
          public String name;
@@ -1122,6 +3588,8 @@ public abstract class Storage<T> {
          }
 
          public Action param(String key, Object value) {
+            if (params == null)
+               params = new HashMap<String, Object>();
             params.put(key, value);
             return this;
          }
@@ -1129,6 +3597,34 @@ public abstract class Storage<T> {
          public Object param(String key) {
             return (params == null) ? null : params.get(key);
          }
+
+         /**
+          * Merges actions into one. It's named after them if they all share a name,
+          * {@link #COALESCED} otherwise. The merged action lists ids of all affected
+          * objects under "objectIds" and the original actions under "actions".
+          * @param actions
+          * @return
+          */
+         public static Action merge(java.util.List<Action> actions) {
+            String name = actions.get(0).name;
+            LinkedHashSet<String> objectIds = new LinkedHashSet<String>();
+            ArrayList<Action> merged = new ArrayList<Action>(actions.size());
+            for (Action action : actions) {
+               if (!name.equals(action.name))
+                  name = COALESCED;
+               Object objectId = action.param("objectId");
+               if (objectId instanceof String)
+                  objectIds.add((String) objectId);
+               Object ids = action.param("objectIds");
+               if (ids instanceof Collection)
+                  objectIds.addAll((Collection<String>) ids);
+               merged.add(action);
+            }
+            if (merged.size() == 1) {
+               return merged.get(0);
+            }
+            return new Action(name).param("objectIds", objectIds).param("actions", merged);
+         }
       }
       public void onUpdate(Action action);
    }
@@ -1138,6 +3634,25 @@ public abstract class Storage<T> {
       public boolean loadSync(Storage.List storageList);
    }
 
+   /**
+    * {@link TransportLayer} able to restore a list's ids before its items
+    */
+   public interface LazyTransportLayer extends TransportLayer {
+      /**
+       * Restores ids & meta via {@link List#restore(java.util.List, HashMap)}
+       * @param storageList
+       * @return
+       */
+      public boolean loadIdsSync(Storage.List storageList);
+
+      /**
+       * @param storageList
+       * @param ids
+       * @return items with the given ids that could be found
+       */
+      public java.util.List fetchSync(Storage.List storageList, java.util.List<String> ids);
+   }
+
    protected TransportLayer transportLayer() {
       if (DEFAULT_TRANSPORT_LAYER == null) {
          DEFAULT_TRANSPORT_LAYER = new KryoTransportLayer(context);
@@ -1,5 +1,6 @@
 package com.eyeem.storage;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 
 /**
@@ -12,6 +13,10 @@ public class WeakEqualReference<T> extends WeakReference<T> {
       super(r);
    }
 
+   public WeakEqualReference(T r, ReferenceQueue<? super T> q) {
+      super(r, q);
+   }
+
    @SuppressWarnings("unchecked")
    @Override
    public boolean equals(Object other) {
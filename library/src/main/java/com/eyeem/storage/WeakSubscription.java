@@ -0,0 +1,28 @@
+package com.eyeem.storage;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Forwards a list's actions to a subscription without keeping it alive.
+ * Once the subscription is garbage collected it unsubscribes itself
+ * on the next action.
+ */
+class WeakSubscription implements Storage.Subscription {
+
+   private final WeakReference<Storage.Subscription> subscription;
+   private final Storage.List list;
+
+   WeakSubscription(Storage.Subscription subscription, Storage.List list) {
+      this.subscription = new WeakReference<Storage.Subscription>(subscription);
+      this.list = list;
+   }
+
+   @Override public void onUpdate(Action action) {
+      Storage.Subscription target = subscription.get();
+      if (target == null) {
+         list.unsubscribe(this);
+         return;
+      }
+      target.onUpdate(action);
+   }
+}
@@ -152,6 +152,40 @@ public class Database {
          }
       }
 
+      public boolean loadIds(Storage.List list) {
+         if (list == null)
+            return false;
+         SQLiteDatabase db = read();
+         if (db == null)
+            return false;
+
+         ListDescriptor listDescriptor = null;
+         try {
+            listDescriptor = readListDescriptor(db, list.getName());
+         } finally {
+            if (db.isOpen()) db.close();
+         }
+         if (listDescriptor != null) {
+            list.restore(listDescriptor.ids, listDescriptor.meta);
+         } else {
+            list.publish(new Storage.Subscription.Action(Storage.Subscription.LOADED));
+         }
+         return true;
+      }
+
+      public List fetch(List<String> ids) {
+         SQLiteDatabase db = read();
+         if (db == null)
+            return new ArrayList<Object>();
+         try {
+            ListDescriptor descriptor = new ListDescriptor();
+            descriptor.ids = ids;
+            return readObjects(db, descriptor.idsSQL());
+         } finally {
+            if (db.isOpen()) db.close();
+         }
+      }
+
       private List readObjects(SQLiteDatabase db, String selection, String[] selectionArgs, String groupBy, String having, String orderBy) {
 
          ArrayList<Object> result = new ArrayList<Object>();
@@ -5,11 +5,12 @@ import android.content.Context;
 import com.eyeem.storage.Storage;
 
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Created by vishna on 28/02/15.
  */
-public class SQLiteTransportLayer implements Storage.TransportLayer {
+public class SQLiteTransportLayer implements Storage.LazyTransportLayer {
 
    Database.Helper helper;
 
@@ -25,6 +26,14 @@ public class SQLiteTransportLayer implements Storage.TransportLayer {
       return helper.load(list);
    }
 
+   @Override public boolean loadIdsSync(Storage.List list) {
+      return helper.loadIds(list);
+   }
+
+   @Override public List fetchSync(Storage.List list, List<String> ids) {
+      return helper.fetch(ids);
+   }
+
    public interface Converter {
       public String string(Object object);
       public String metaString(HashMap<String, Object> meta);
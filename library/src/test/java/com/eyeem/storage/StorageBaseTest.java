@@ -79,6 +79,41 @@ public class StorageBaseTest {
       Assert.assertEquals(l.get(2).id, "4");
    }
 
+   @Test public void testDeleteReleasesIds() {
+      Storage<Item> s = getStorage();
+
+      Storage<Item>.List l = s.obtainList("test");
+      l.add(__("kept"));
+      for (int i = 0; i < 1000; i++) {
+         l.add(__("item_" + i));
+         s.delete("item_" + i);
+      }
+      Assert.assertEquals(1, l.size());
+      Assert.assertEquals(1, s.idTable.size());
+      Assert.assertEquals("kept", l.idForPosition(0));
+   }
+
+   @Test public void testReleasedIdsInSnapshots() {
+      Storage<Item> s = getStorage();
+      s.setEvictionDelay(0);
+
+      Storage<Item>.List l = s.obtainList("test");
+      Storage<Item>.List other = s.obtainList("other");
+      l.add(__("A"));
+      l.add(__("B"));
+      java.util.List<String> snapshot = l.ids();
+      java.util.List<Item> window = l.window(0, 2);
+      l.remove(0);
+      other.add(__("Z"));
+
+      // the released id's handle doesn't turn into another id
+      Assert.assertFalse("Z".equals(snapshot.get(0)));
+      Assert.assertEquals("B", snapshot.get(1));
+      Assert.assertTrue(window.get(0) == null || !"Z".equals(window.get(0).id));
+      Assert.assertEquals("B", window.get(1).id);
+      Assert.assertEquals("Z", other.idForPosition(0));
+   }
+
    @Test public void testEvict() {
       Storage<Item> s = getStorage();
 
@@ -93,8 +128,8 @@ public class StorageBaseTest {
       Storage<Item>.List l1_transaction = l1.transaction();
       l1_transaction.add(__("phil"));
 
-      // eviction occurs during obtaining List
-      Storage<Item>.List l2 = s.obtainList("list_2");
+      // eviction only visits unreferenced items
+      Assert.assertEquals(1, s.evict());
 
       Assert.assertNotNull(s.get("ramz"));
       Assert.assertNotNull(s.get("ronaldo"));
@@ -104,6 +139,122 @@ public class StorageBaseTest {
       Assert.assertNotNull(s.get("phil"));
    }
 
+   @Test public void testEvictOnRelease() {
+      Storage<Item> s = getStorage();
+      s.setEvictionDelay(0);
+
+      Storage<Item>.List l1 = s.obtainList("list_1");
+      Storage<Item>.List l2 = s.obtainList("list_2");
+      l1.add(__("ramz"));
+      l1.add(__("martin"));
+      l2.add(__("martin"));
+
+      Assert.assertEquals(1, s.refCount("ramz"));
+      Assert.assertEquals(2, s.refCount("martin"));
+
+      Storage<Item>.List l1_transaction = l1.transaction();
+      Assert.assertEquals(2, s.refCount("ramz"));
+      l1_transaction.remove(__("ramz"));
+      l1_transaction.commit();
+      Assert.assertEquals(0, s.refCount("ramz"));
+      Assert.assertNull(s.get("ramz"));
+
+      l1.clear();
+      Assert.assertNotNull(s.get("martin"));
+      l2.trim(0);
+      Assert.assertNull(s.get("martin"));
+   }
+
+   @Test public void testMaxSize() {
+      Storage<Item> s = getStorage();
+      s.setEvictionDelay(-1);
+      s.setMaxSize(3, new LruEvictionPolicy());
+
+      Storage<Item>.List l = s.obtainList("list_1");
+      l.retain();
+      l.add(__("ramz"));
+      s.retain(__("frank"));
+      s.push(__("tobi"));
+      s.push(__("phil"));
+
+      // tobi is the only one that isn't pinned
+      Assert.assertEquals(3, s.currentSize());
+      Assert.assertNull(s.get("tobi"));
+      Assert.assertNotNull(s.get("phil"));
+      Assert.assertEquals(1, s.evictionCount());
+      Assert.assertEquals(1, s.missCount());
+      Assert.assertEquals(1, s.hitCount());
+
+      s.push(__("martin"));
+      Assert.assertNull(s.get("phil"));
+      Assert.assertNotNull(s.get("ramz"));
+      Assert.assertNotNull(s.get("frank"));
+      l.recycle();
+   }
+
+   @Test public void testInternalReadsDontCount() {
+      Storage<Item> s = getStorage();
+      s.setEvictionDelay(-1);
+      s.setMaxSize(3, new LruEvictionPolicy());
+
+      Storage<Item>.List l = s.obtainList("list_1");
+      l.add(__("old"));
+      l.add(__("new"));
+      l.add(__("third"));
+      // reading backwards would make "old" the most recently used
+      for (java.util.ListIterator<Item> it = l.listIterator(l.size()); it.hasPrevious(); ) {
+         it.previous();
+      }
+      l.toArray();
+      Assert.assertEquals(0, s.hitCount());
+      Assert.assertEquals(0, s.missCount());
+
+      l.add(__("fourth"));
+      Assert.assertNull(s.get("old"));
+      Assert.assertNotNull(s.get("new"));
+      Assert.assertEquals(1, s.hitCount());
+      Assert.assertEquals(1, s.missCount());
+   }
+
+   @Test public void testMaxSizeBatchOnRetainedList() {
+      Storage.EvictionPolicy[] policies = {new LruEvictionPolicy(), new FrequencyEvictionPolicy(100)};
+      for (Storage.EvictionPolicy policy : policies) {
+         Storage<Item> s = getStorage();
+         s.setEvictionDelay(-1);
+         s.setMaxSize(10, policy);
+         s.push(__("loose"));
+
+         Storage<Item>.List l = s.obtainList("batch");
+         l.retain();
+         java.util.ArrayList<Item> batch = new java.util.ArrayList<Item>();
+         for (int i = 0; i < 15; i++) {
+            batch.add(__("batch" + i));
+         }
+         l.addAll(batch);
+
+         // the unreferenced item goes, the retained list's batch stays
+         Assert.assertNull(s.get("loose"));
+         Assert.assertEquals(15, l.size());
+         for (int i = 0; i < 15; i++) {
+            Assert.assertNotNull(s.get("batch" + i));
+         }
+         l.recycle();
+      }
+   }
+
+   @Test public void testFrequencyEvictionPolicy() {
+      FrequencyEvictionPolicy policy = new FrequencyEvictionPolicy(100);
+      for (int i = 0; i < 100; i++) {
+         policy.onInsert(String.valueOf(i));
+      }
+      // "0" is the oldest but gets accessed a lot
+      for (int i = 0; i < 10; i++) {
+         policy.onAccess("0");
+      }
+      Assert.assertTrue(policy.frequency("0") > policy.frequency("1"));
+      Assert.assertFalse("0".equals(policy.candidates().next()));
+   }
+
    @Test public void testListRetainRecycle() {
       Storage<Item> s = getStorage();
 
@@ -229,6 +380,1031 @@ public class StorageBaseTest {
       Assert.assertEquals(6, l.size());
    }
 
+   @Test public void testPushNotifiesContainingLists() {
+      Storage<Item> s = getStorage();
+
+      Storage<Item>.List l1 = s.obtainList("list_1");
+      Storage<Item>.List l2 = s.obtainList("list_2");
+      l1.add(__("ramz"));
+      l2.add(__("ronaldo"));
+      l2.add(__("ramz"));
+
+      final int[] pushes = new int[2];
+      l1.subscribe(new Storage.Subscription() {
+         @Override public void onUpdate(Action action) {
+            if (Storage.Subscription.PUSH.equals(action.name)) pushes[0]++;
+         }
+      });
+      l2.subscribe(new Storage.Subscription() {
+         @Override public void onUpdate(Action action) {
+            if (Storage.Subscription.PUSH.equals(action.name)) pushes[1]++;
+         }
+      });
+
+      s.push(__("ronaldo"));
+      Assert.assertEquals(0, pushes[0]);
+      Assert.assertEquals(1, pushes[1]);
+
+      l2.remove(__("ramz"));
+      s.push(__("ramz"));
+      Assert.assertEquals(1, pushes[0]);
+      Assert.assertEquals(1, pushes[1]);
+
+      l1.trim(0);
+      s.push(__("ramz"));
+      Assert.assertEquals(1, pushes[0]);
+      Assert.assertEquals(0, s.listsContaining("ramz").size());
+
+      s.delete("ronaldo");
+      Assert.assertEquals(0, l2.size());
+   }
+
+   @Test public void testDedupeIndex() {
+      Storage<Item> s = getStorage();
+
+      Storage<Item>.List l = s.obtainList("test");
+      l.enableDedupe(true);
+      l.addAll(java.util.Arrays.asList(__("A"), __("B"), __("C"), __("B")));
+      Assert.assertEquals(3, l.size());
+      Assert.assertEquals(1, l.indexOfId("B"));
+
+      // duplicates move to the requested location
+      l.addAll(0, java.util.Arrays.asList(__("C"), __("D"), __("C")));
+      Assert.assertEquals(4, l.size());
+      Assert.assertEquals(0, l.indexOfId("C"));
+      Assert.assertEquals(1, l.indexOfId("D"));
+      Assert.assertEquals(2, l.indexOfId("A"));
+      Assert.assertEquals(3, l.indexOfId("B"));
+
+      l.add(__("E"));
+      Assert.assertEquals(4, l.indexOfId("E"));
+      Assert.assertNotNull(l.removeById("D"));
+      Assert.assertNull(l.getById("D"));
+      Assert.assertFalse(l.contains(__("D")));
+      Assert.assertEquals(3, l.indexOfId("E"));
+      Assert.assertEquals(-1, l.indexOfId("D"));
+   }
+
+   @Test public void testIndexFollowsChanges() {
+      Storage<Item> s = getStorage();
+
+      Storage<Item>.List l = s.obtainList("test");
+      for (int i = 0; i < 20; i++) {
+         l.add(__(String.valueOf(i % 7)));
+      }
+      java.util.Random random = new java.util.Random(4);
+      for (int round = 0; round < 200; round++) {
+         // enough lookups for the positions to get indexed between changes
+         for (int i = 0; i < 8; i++) {
+            String id = String.valueOf(i);
+            int expected = -1;
+            for (int j = 0; j < l.size(); j++) {
+               if (l.get(j).id.equals(id)) {
+                  expected = j;
+                  break;
+               }
+            }
+            Assert.assertEquals(expected, l.indexOfId(id));
+         }
+         String id = String.valueOf(random.nextInt(8));
+         switch (random.nextInt(4)) {
+            case 0: l.add(random.nextInt(l.size() + 1), __(id)); break;
+            case 1: if (l.size() > 0) l.remove(random.nextInt(l.size())); break;
+            case 2: if (l.size() > 0) l.set(random.nextInt(l.size()), __(id)); break;
+            case 3: l.removeById(id); break;
+         }
+      }
+   }
+
+   @Test public void testOrderedInsert() {
+      Storage<Item> s = getStorage();
+
+      Storage<Item>.List l = s.obtainList("test");
+      l.add(__("F"));
+      l.add(__("C"));
+      l.enableOrderedInsert(new Comparator<Item>() {
+         @Override
+         public int compare(Item lhs, Item rhs) {
+            return lhs.text.compareTo(rhs.text);
+         }
+      });
+      Assert.assertEquals("C", l.idForPosition(0));
+
+      l.add(__("D"));
+      l.addAll(java.util.Arrays.asList(__("H"), __("A"), __("E")));
+      l.addUpFront(java.util.Arrays.asList(__("G"), __("B")), null);
+
+      Assert.assertEquals(8, l.size());
+      for (int i = 0; i < l.size(); i++) {
+         Assert.assertEquals(String.valueOf((char) ('A' + i)), l.get(i).id);
+      }
+
+      // pushed item moves to its new position
+      s.push(new Item("A", "Z"));
+      Assert.assertEquals("A", l.idForPosition(7));
+      Assert.assertEquals("B", l.idForPosition(0));
+   }
+
+   @Test public void testSortKeys() {
+      Storage<Item> s = getStorage();
+
+      Storage<Item>.List l = s.obtainList("test");
+      final int[] extractions = new int[1];
+      l.enableSort(new Storage.KeyComparator<Item>(new Storage.LongKey<Item>() {
+         @Override public long key(Item item) {
+            extractions[0]++;
+            return Long.parseLong(item.text);
+         }
+      }, true));
+
+      for (int i = 0; i < 20; i++) {
+         l.add(new Item(String.valueOf(i), String.valueOf(i)));
+      }
+      // one extraction per add, none while sorting
+      Assert.assertEquals(20, extractions[0]);
+      Assert.assertEquals("19", l.idForPosition(0));
+      Assert.assertEquals("0", l.idForPosition(19));
+
+      s.push(new Item("0", "100"));
+      l.sortSelf(l.getComparator());
+      Assert.assertEquals("0", l.idForPosition(0));
+      Assert.assertEquals(21, extractions[0]);
+   }
+
+   @Test public void testSortKeysAcrossLists() {
+      Storage<Item> s = getStorage();
+
+      Storage.KeyComparator<Item> byText = new Storage.KeyComparator<Item>(new Storage.LongKey<Item>() {
+         @Override public long key(Item item) {
+            return Long.parseLong(item.text);
+         }
+      }, false);
+      Storage<Item>.List sorted = s.obtainList("sorted");
+      sorted.enableSort(byText);
+      Storage<Item>.List ordered = s.obtainList("ordered");
+      ordered.enableOrderedInsert(byText);
+      Storage<Item>.List plain = s.obtainList("plain");
+      for (int i = 0; i < 5; i++) {
+         Item item = new Item(String.valueOf(i), String.valueOf(i));
+         sorted.add(item);
+         ordered.add(item);
+      }
+      Assert.assertEquals("0", sorted.idForPosition(0));
+      Assert.assertEquals("0", ordered.idForPosition(0));
+
+      // a new version stored through another list
+      plain.add(new Item("0", "10"));
+      Assert.assertEquals("0", ordered.idForPosition(4));
+      sorted.sortSelf(sorted.getComparator());
+      Assert.assertEquals("0", sorted.idForPosition(4));
+   }
+
+   @Test public void testCoalescedNotifications() {
+      Storage<Item> s = getStorage();
+
+      Storage<Item>.List l = s.obtainList("test");
+      final java.util.ArrayList<Storage.Subscription.Action> actions = new java.util.ArrayList<Storage.Subscription.Action>();
+      l.subscribe(new Storage.Subscription() {
+         @Override public void onUpdate(Action action) {
+            actions.add(action);
+         }
+      });
+      s.coalesceNotifications(0);
+
+      l.add(__("A"));
+      l.addAll(java.util.Arrays.asList(__("B"), __("C")));
+      s.push(__("A"));
+      Assert.assertEquals(0, actions.size());
+
+      s.flushNotifications();
+      Assert.assertEquals(1, actions.size());
+      Storage.Subscription.Action action = actions.get(0);
+      Assert.assertEquals(Storage.Subscription.COALESCED, action.name);
+      Assert.assertEquals(3, ((java.util.Collection) action.param("objectIds")).size());
+      Assert.assertEquals(3, ((java.util.List) action.param("actions")).size());
+
+      // back to immediate delivery
+      s.coalesceNotifications(-1);
+      l.remove(__("C"));
+      Assert.assertEquals(2, actions.size());
+      Assert.assertEquals(Storage.Subscription.REMOVE, actions.get(1).name);
+   }
+
+   @Test public void testExecutorNotifications() {
+      Storage<Item> s = getStorage();
+
+      Storage<Item>.List l = s.obtainList("test");
+      final java.util.ArrayList<Storage.Subscription.Action> actions = new java.util.ArrayList<Storage.Subscription.Action>();
+      l.subscribe(new Storage.Subscription() {
+         @Override public void onUpdate(Action action) {
+            actions.add(action);
+         }
+      });
+      final java.util.ArrayList<Runnable> tasks = new java.util.ArrayList<Runnable>();
+      s.deliverNotificationsOn(new java.util.concurrent.Executor() {
+         @Override public void execute(Runnable command) {
+            tasks.add(command);
+         }
+      }, 2);
+
+      l.add(__("A"));
+      l.add(__("B"));
+      l.add(__("C"));
+      Assert.assertEquals(0, actions.size());
+      Assert.assertEquals(1, tasks.size());
+
+      tasks.get(0).run();
+      // the subscriber fell behind so queued actions got collapsed
+      Assert.assertEquals(1, actions.size());
+      Assert.assertEquals(Storage.Subscription.ADD, actions.get(0).name);
+      Assert.assertEquals(3, ((java.util.Collection) actions.get(0).param("objectIds")).size());
+   }
+
+   @Test public void testListDiff() {
+      java.util.List<String> before = java.util.Arrays.asList("A", "B", "C", "D", "E", "F");
+      java.util.List<String> after = java.util.Arrays.asList("X", "A", "E", "C", "D", "Y", "F");
+      ListDiff diff = ListDiff.compute(before, after);
+
+      Assert.assertEquals(after, diff.apply(before));
+      int moved = 0;
+      for (ListDiff.Change change : diff.changes) {
+         if (ListDiff.MOVE.equals(change.type)) moved += change.count();
+      }
+      Assert.assertEquals(1, moved);
+
+      Storage<Item> s = getStorage();
+      Storage<Item>.List l = s.obtainList("test");
+      final Storage.Subscription.Action[] last = new Storage.Subscription.Action[1];
+      l.subscribe(new Storage.Subscription() {
+         @Override public void onUpdate(Action action) {
+            last[0] = action;
+         }
+      });
+      l.addAll(java.util.Arrays.asList(__("A"), __("B"), __("C")));
+      Storage<Item>.List transaction = l.transaction();
+      transaction.remove(__("B"));
+      transaction.add(__("D"));
+      transaction.commit();
+      diff = (ListDiff) last[0].param("diff");
+      Assert.assertEquals(2, diff.changes.size());
+      Assert.assertEquals(java.util.Arrays.asList("A", "C", "D"), diff.apply(java.util.Arrays.asList("A", "B", "C")));
+
+      // the caller's params are copied, not filled in
+      java.util.HashMap<String, Object> params = new java.util.HashMap<String, Object>();
+      params.put("source", "refresh");
+      l.addUpFront(java.util.Arrays.asList(__("E")), params);
+      Assert.assertEquals(1, params.size());
+      Assert.assertEquals("refresh", last[0].param("source"));
+      Assert.assertNotNull(last[0].param("diff"));
+   }
+
+   @Test public void testPushAll() {
+      Storage<Item> s = getStorage();
+
+      Storage<Item>.List l1 = s.obtainList("list_1");
+      Storage<Item>.List l2 = s.obtainList("list_2");
+      l1.addAll(java.util.Arrays.asList(__("A"), __("B"), __("C")));
+      l2.addAll(java.util.Arrays.asList(__("C"), __("D")));
+
+      final java.util.ArrayList<Storage.Subscription.Action> actions = new java.util.ArrayList<Storage.Subscription.Action>();
+      Storage.Subscription subscription = new Storage.Subscription() {
+         @Override public void onUpdate(Action action) {
+            actions.add(action);
+         }
+      };
+      l1.subscribe(subscription);
+      l2.subscribe(subscription);
+
+      s.pushAll(java.util.Arrays.asList(new Item("A", "a"), new Item("C", "c"), new Item("E", "e")), null);
+
+      Assert.assertEquals(2, actions.size());
+      for (Storage.Subscription.Action action : actions) {
+         Assert.assertEquals(Storage.Subscription.PUSH, action.name);
+      }
+      Assert.assertEquals("a", s.get("A").text);
+      Assert.assertEquals("e", s.get("E").text);
+   }
+
+   @Test public void testInternedIds() {
+      Storage<Item> s = getStorage();
+      Storage<Item>.List l1 = s.obtainList("list_1");
+      Storage<Item>.List l2 = s.obtainList("list_2");
+      l1.add(new Item(new String("A"), "a"));
+      l2.add(new Item(new String("A"), "a"));
+      Assert.assertSame(l1.ids().get(0), l2.ids().get(0));
+
+      java.util.List<String> snapshot = l1.ids();
+      l1.add(__("B"));
+      l1.remove(0);
+      Assert.assertEquals(java.util.Arrays.asList("A"), snapshot);
+      Assert.assertEquals(java.util.Arrays.asList("B"), l1.ids());
+      Assert.assertEquals(0, l1.indexOfId("B"));
+   }
+
+   @Test public void testIdSequence() {
+      IdTable table = new IdTable();
+      IdSequence sequence = new IdSequence(table);
+      java.util.ArrayList<String> expected = new java.util.ArrayList<String>();
+      java.util.Random random = new java.util.Random(7);
+      java.util.List<String> snapshot = null;
+      java.util.ArrayList<String> snapshotExpected = null;
+      for (int i = 0; i < 20000; i++) {
+         int op = random.nextInt(10);
+         String id = Integer.toString(random.nextInt(5000));
+         if (op < 5 || expected.isEmpty()) {
+            int index = random.nextInt(expected.size() + 1);
+            sequence.add(index, id);
+            expected.add(index, id);
+         } else if (op < 8) {
+            int index = random.nextInt(expected.size());
+            Assert.assertEquals(expected.remove(index), sequence.remove(index));
+         } else {
+            int index = random.nextInt(expected.size());
+            Assert.assertEquals(expected.set(index, id), sequence.set(index, id));
+         }
+         if (i == 10000) {
+            snapshot = sequence.snapshot();
+            snapshotExpected = new java.util.ArrayList<String>(expected);
+         }
+      }
+      Assert.assertEquals(expected, sequence);
+      Assert.assertEquals(expected, new java.util.ArrayList<String>(sequence));
+      Assert.assertEquals(snapshotExpected, snapshot);
+      String id = expected.get(expected.size() / 2);
+      Assert.assertEquals(expected.indexOf(id), sequence.indexOf(id));
+      Assert.assertEquals(expected.lastIndexOf(id), sequence.lastIndexOf(id));
+      Assert.assertEquals(expected.subList(10, 300), sequence.slice(10, 300));
+
+      sequence.addAll(100, expected.subList(0, 500));
+      expected.addAll(100, expected.subList(0, 500));
+      Assert.assertEquals(expected, sequence);
+   }
+
+   @Test public void testListIteratorAdd() {
+      Storage<Item> s = getStorage();
+
+      Storage<Item>.List l = s.obtainList("test");
+      l.enableDedupe(true);
+      l.addAll(java.util.Arrays.asList(__("A"), __("B"), __("C")));
+      java.util.ListIterator<Item> it = l.listIterator(1);
+      it.add(__("X"));
+      Assert.assertEquals(2, it.nextIndex());
+      // duplicate is dropped, the cursor stays put
+      it.add(__("A"));
+      Assert.assertEquals(2, it.nextIndex());
+      Assert.assertEquals("B", it.next().id);
+
+      Storage<Item>.List ordered = s.obtainList("ordered");
+      ordered.enableOrderedInsert(new Comparator<Item>() {
+         @Override public int compare(Item lhs, Item rhs) {
+            return lhs.text.compareTo(rhs.text);
+         }
+      });
+      ordered.addAll(java.util.Arrays.asList(__("B"), __("D")));
+      it = ordered.listIterator(0);
+      // goes behind the cursor, next() still gets to it
+      it.add(__("C"));
+      Assert.assertEquals(0, it.nextIndex());
+      Assert.assertEquals("B", it.next().id);
+      Assert.assertEquals("C", it.next().id);
+      Assert.assertEquals("D", it.next().id);
+   }
+
+   @Test public void testLongStorage() {
+      LongStorage<Item> s = new LongStorage<Item>(RuntimeEnvironment.application) {
+         @Override public Class<Item> classname() {
+            return Item.class;
+         }
+         @Override public long longId(Item item) {
+            return Long.parseLong(item.id);
+         }
+      };
+      s.init();
+      Storage<Item>.List l = s.obtainList("test");
+      l.add(__("42"));
+      l.add(__("7"));
+      Assert.assertSame(s.id(__("42")), s.id(42));
+      Assert.assertEquals("7", s.get(7).text);
+      Assert.assertNull(s.get(8));
+
+      // deleted ids don't keep their names
+      for (int i = 100; i < 1100; i++) {
+         l.add(__(String.valueOf(i)));
+         s.delete(s.id(i));
+      }
+      s.delete(s.id(42));
+      Assert.assertEquals(1, s.namesCount());
+      Assert.assertNull(s.get(42));
+      Assert.assertEquals("7", l.get(0).id);
+
+      // lookups of unknown ids don't keep anything either
+      for (int i = 2000; i < 3000; i++) {
+         Assert.assertFalse(l.contains(__(String.valueOf(i))));
+         Assert.assertEquals(-1, l.indexOf(__(String.valueOf(i))));
+         Assert.assertNull(s.get(i));
+         Assert.assertFalse(s.contains(i));
+      }
+      Assert.assertEquals(1, s.namesCount());
+      Assert.assertEquals(1, s.idTable.size());
+
+      LongMap<String> map = new LongMap<String>();
+      for (long i = 0; i < 1000; i++) {
+         map.put(i * 31, Long.toString(i));
+      }
+      for (long i = 0; i < 1000; i += 2) {
+         Assert.assertEquals(Long.toString(i), map.remove(i * 31));
+      }
+      Assert.assertEquals(500, map.size());
+      Assert.assertNull(map.get(0));
+      Assert.assertEquals("999", map.get(999 * 31));
+   }
+
+   @Test public void testLazyLoading() {
+      final KryoTransportLayer kryo = new KryoTransportLayer(RuntimeEnvironment.application);
+      final int[] fetched = new int[1];
+      final Storage.LazyTransportLayer transport = new Storage.LazyTransportLayer() {
+         @Override public boolean saveSync(Storage.List list, int limit) {
+            return kryo.saveSync(list, limit);
+         }
+         @Override public boolean loadSync(Storage.List list) {
+            return kryo.loadSync(list);
+         }
+         @Override public boolean loadIdsSync(Storage.List list) {
+            return kryo.loadIdsSync(list);
+         }
+         @Override public java.util.List fetchSync(Storage.List list, java.util.List<String> ids) {
+            java.util.List result = kryo.fetchSync(list, ids);
+            fetched[0] += result.size();
+            return result;
+         }
+      };
+      Storage<Item> saved = getStorage();
+      Storage<Item>.List l = saved.obtainList("lazy");
+      for (int i = 0; i < 100; i++) {
+         l.add(__("item" + i));
+      }
+      Assert.assertTrue(kryo.saveSync(l, 100));
+
+      Storage<Item> s = new Storage<Item>(RuntimeEnvironment.application) {
+         @Override public Class<Item> classname() {
+            return Item.class;
+         }
+         @Override public String id(Item item) {
+            return item.id;
+         }
+         @Override protected TransportLayer transportLayer() {
+            return transport;
+         }
+      };
+      s.init();
+      Storage<Item>.List lazy = s.obtainList("lazy");
+      lazy.setPaging(10, 0);
+      Assert.assertTrue(lazy.loadIdsSync());
+      Assert.assertEquals(100, lazy.size());
+      Assert.assertTrue(lazy.isPartiallyLoaded());
+      Assert.assertEquals(0, fetched[0]);
+
+      Assert.assertEquals("item50", lazy.get(50).text);
+      Assert.assertEquals(10, fetched[0]);
+      Assert.assertEquals("item59", lazy.get(59).text);
+      Assert.assertEquals(10, fetched[0]);
+      Assert.assertNull(s.get("item60"));
+
+      int count = 0;
+      for (Item item : lazy) {
+         if (item != null) count++;
+      }
+      Assert.assertEquals(100, count);
+      Assert.assertFalse(lazy.isPartiallyLoaded());
+   }
+
+   @Test public void testKryoPool() throws Exception {
+      final KryoTransportLayer kryo = new KryoTransportLayer(RuntimeEnvironment.application);
+      Storage<Item> saved = getStorage();
+      for (int n = 0; n < 3; n++) {
+         Storage<Item>.List l = saved.obtainList("pooled" + n);
+         for (int i = 0; i < 20; i++) {
+            l.add(__("item" + n + "_" + i));
+         }
+         l.setMeta("n", n);
+         Assert.assertTrue(kryo.saveSync(l, 20));
+      }
+
+      Storage<Item> s = getStorage();
+      for (int n = 0; n < 3; n++) {
+         Storage<Item>.List l = s.obtainList("pooled" + n);
+         Assert.assertTrue(kryo.loadSync(l));
+         Assert.assertEquals(20, l.size());
+         Assert.assertEquals("item" + n + "_19", l.get(19).text);
+         Assert.assertEquals(n, l.getMeta("n"));
+      }
+
+      // files written before registration keep loading
+      java.util.ArrayList<Item> items = new java.util.ArrayList<Item>();
+      items.add(__("old"));
+      java.util.HashMap<String, Object> data = new java.util.HashMap<String, Object>();
+      data.put("list", items);
+      data.put("meta", new java.util.HashMap<String, Object>());
+      java.io.File dir = new java.io.File(RuntimeEnvironment.application.getCacheDir(), "Item" + java.io.File.separator + "0");
+      dir.mkdirs();
+      com.esotericsoftware.kryo.io.Output output = new com.esotericsoftware.kryo.io.Output(new java.io.FileOutputStream(new java.io.File(dir, "legacy")));
+      new com.esotericsoftware.kryo.Kryo().writeObject(output, data);
+      output.close();
+      Storage<Item>.List legacy = s.obtainList("legacy");
+      Assert.assertTrue(kryo.loadSync(legacy));
+      Assert.assertEquals("old", legacy.get(0).text);
+   }
+
+   @Test public void testSharedObjectStore() throws Exception {
+      KryoTransportLayer kryo = new KryoTransportLayer(RuntimeEnvironment.application);
+      java.io.File store = new java.io.File(RuntimeEnvironment.application.getCacheDir(), "Item" + java.io.File.separator + "store-0" + java.io.File.separator + "objects");
+      store.delete();
+      Storage<Item> saved = getStorage();
+      Storage<Item>.List a = saved.obtainList("shared_a");
+      Storage<Item>.List b = saved.obtainList("shared_b");
+      for (int i = 0; i < 10; i++) {
+         a.add(__("shared" + i));
+         b.add(__("shared" + (i + 5)));
+      }
+      Assert.assertTrue(kryo.saveSync(a, 10));
+      long length = store.length();
+      Assert.assertTrue(kryo.saveSync(b, 10));
+      long shared = store.length() - length;
+      Assert.assertTrue(shared > 0 && shared < length);
+
+      // nothing changed, nothing written
+      length = store.length();
+      Assert.assertTrue(kryo.saveSync(a, 10));
+      Assert.assertEquals(length, store.length());
+      saved.push(new Item("shared7", "changed"));
+      Assert.assertTrue(kryo.saveSync(b, 10));
+      Assert.assertTrue(store.length() > length);
+
+      // a new transport reads the store back, cached items are kept
+      Storage<Item> s = getStorage();
+      Item cached = new Item("shared3", "cached");
+      s.push(cached);
+      Storage<Item>.List loadedA = s.obtainList("shared_a");
+      Storage<Item>.List loadedB = s.obtainList("shared_b");
+      KryoTransportLayer reopened = new KryoTransportLayer(RuntimeEnvironment.application);
+      Assert.assertTrue(reopened.loadSync(loadedA));
+      Assert.assertTrue(reopened.loadSync(loadedB));
+      Assert.assertEquals(10, loadedA.size());
+      Assert.assertEquals(10, loadedB.size());
+      Assert.assertSame(cached, loadedA.get(3));
+      Assert.assertEquals("changed", loadedA.get(7).text);
+      Assert.assertSame(loadedA.get(7), loadedB.get(2));
+
+      // lists named like the store's files keep their objects through compaction
+      String[] reserved = {"objects", "named.objects", "named.journal", "named.tmp"};
+      for (String name : reserved) {
+         Storage<Item>.List l = saved.obtainList(name);
+         l.add(new Item(name + "_item", name));
+         Assert.assertTrue(kryo.saveSync(l, 10));
+      }
+
+      // superseded records get compacted away once they outweigh the rest
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < 4096; i++) text.append('x');
+      Storage<Item>.List big = saved.obtainList("shared_big");
+      for (int generation = 0; generation < 3; generation++) {
+         big.clear();
+         for (int i = 0; i < 20; i++) {
+            big.add(new Item("big" + i, generation + text.toString()));
+         }
+         Assert.assertTrue(kryo.saveSync(big, 20));
+      }
+      Assert.assertTrue(store.length() < 2 * 20 * 4096);
+      Storage<Item>.List loadedBig = getStorage().obtainList("shared_big");
+      Assert.assertTrue(new KryoTransportLayer(RuntimeEnvironment.application).loadSync(loadedBig));
+      Assert.assertEquals(20, loadedBig.size());
+      Assert.assertTrue(loadedBig.get(0).text.startsWith("2"));
+      Storage<Item>.List reloadedA = getStorage().obtainList("shared_a");
+      Assert.assertTrue(new KryoTransportLayer(RuntimeEnvironment.application).loadSync(reloadedA));
+      Assert.assertEquals("changed", reloadedA.get(7).text);
+      for (String name : reserved) {
+         Storage<Item>.List l = getStorage().obtainList(name);
+         Assert.assertTrue(new KryoTransportLayer(RuntimeEnvironment.application).loadSync(l));
+         Assert.assertEquals(name, l.get(0).text);
+      }
+   }
+
+   @Test public void testSaveSerializesChangedOnly() throws Exception {
+      final int[] written = new int[1];
+      KryoTransportLayer kryo = new KryoTransportLayer(RuntimeEnvironment.application) {
+         @Override protected void register(com.esotericsoftware.kryo.Kryo k, Class klazz) {
+            super.register(k, klazz);
+            k.register(klazz, new com.esotericsoftware.kryo.serializers.FieldSerializer(k, klazz) {
+               @Override public void write(com.esotericsoftware.kryo.Kryo k, com.esotericsoftware.kryo.io.Output output, Object object) {
+                  written[0]++;
+                  super.write(k, output, object);
+               }
+            });
+         }
+      };
+      Storage<Item> s = getStorage();
+      Storage<Item>.List l = s.obtainList("changed_only");
+      for (int i = 0; i < 10; i++) {
+         l.add(__("changed_only" + i));
+      }
+      Assert.assertTrue(kryo.saveSync(l, 10));
+      Assert.assertEquals(10, written[0]);
+
+      // unchanged items aren't serialized again
+      Assert.assertTrue(kryo.saveSync(l, 10));
+      Assert.assertEquals(10, written[0]);
+      s.push(new Item("changed_only3", "changed"));
+      Assert.assertTrue(kryo.saveSync(l, 10));
+      Assert.assertEquals(11, written[0]);
+
+      Storage<Item>.List loaded = getStorage().obtainList("changed_only");
+      Assert.assertTrue(new KryoTransportLayer(RuntimeEnvironment.application).loadSync(loaded));
+      Assert.assertEquals(10, loaded.size());
+      Assert.assertEquals("changed", loaded.get(3).text);
+   }
+
+   @Test public void testJournal() throws Exception {
+      KryoTransportLayer kryo = new KryoTransportLayer(RuntimeEnvironment.application);
+      kryo.setJournaling(true);
+      java.io.File dir = new java.io.File(RuntimeEnvironment.application.getCacheDir(), "Item" + java.io.File.separator + "0");
+      java.io.File file = new java.io.File(dir, "journaled");
+      java.io.File journal = new java.io.File(new java.io.File(dir.getParentFile(), "store-0"), "journaled.journal");
+      file.delete();
+      journal.delete();
+
+      Storage<Item> saved = getStorage();
+      Storage<Item>.List l = saved.obtainList("journaled");
+      for (int i = 0; i < 100; i++) {
+         l.add(__("j" + i));
+      }
+      Assert.assertTrue(kryo.saveSync(l, 100));
+      long snapshot = file.length();
+      Assert.assertFalse(journal.exists());
+
+      // changes get appended, the list's file stays as it is
+      l.add(0, __("head"));
+      l.remove(50);
+      l.setMeta("page", 2);
+      Assert.assertTrue(kryo.saveSync(l, 100));
+      Assert.assertEquals(snapshot, file.length());
+      Assert.assertTrue(journal.length() > 0 && journal.length() < snapshot);
+
+      Storage<Item>.List loaded = getStorage().obtainList("journaled");
+      Assert.assertTrue(new KryoTransportLayer(RuntimeEnvironment.application).loadSync(loaded));
+      Assert.assertEquals(l.ids(), loaded.ids());
+      Assert.assertEquals(2, loaded.getMeta("page"));
+
+      // once replaying costs more than the snapshot it's compacted in the background
+      int n = 0;
+      while (journal.exists() && journal.length() < 2 * KryoJournal.MIN_COMPACTION_SIZE) {
+         for (int i = 0; i < 50; i++) {
+            l.add(0, __("new" + n++));
+         }
+         l.trim(100);
+         Assert.assertTrue(kryo.saveSync(l, 100));
+      }
+      for (int i = 0; i < 100 && saved.persistence().queueDepth() > 0; i++) {
+         Thread.sleep(10);
+      }
+      Assert.assertEquals(0, saved.persistence().queueDepth());
+      Assert.assertFalse(journal.exists());
+
+      loaded = getStorage().obtainList("journaled");
+      Assert.assertTrue(new KryoTransportLayer(RuntimeEnvironment.application).loadSync(loaded));
+      Assert.assertEquals(l.ids(), loaded.ids());
+   }
+
+   @Test public void testStreamingLoad() throws Exception {
+      KryoTransportLayer kryo = new KryoTransportLayer(RuntimeEnvironment.application);
+      Storage<Item> saved = getStorage();
+      Storage<Item>.List l = saved.obtainList("streamed");
+      int n = 3 * KryoTransportLayer.LOAD_CHUNK_SIZE + 10;
+      for (int i = 0; i < n; i++) {
+         l.add(__("s" + i));
+      }
+      Assert.assertTrue(kryo.saveSync(l, n));
+
+      Storage<Item> s = getStorage();
+      final Storage<Item>.List loaded = s.obtainList("streamed");
+      loaded.enableDedupe(true);
+      final java.util.ArrayList<Integer> sizes = new java.util.ArrayList<Integer>();
+      final java.util.ArrayList<Object> partial = new java.util.ArrayList<Object>();
+      final java.util.ArrayList<java.util.List<String>> snapshots = new java.util.ArrayList<java.util.List<String>>();
+      final java.util.ArrayList<ListDiff> diffs = new java.util.ArrayList<ListDiff>();
+      loaded.subscribe(new Storage.Subscription() {
+         @Override public void onUpdate(Action action) {
+            Assert.assertEquals(Storage.Subscription.LOADED, action.name);
+            sizes.add(loaded.size());
+            partial.add(action.param("partial"));
+            snapshots.add(loaded.ids());
+            diffs.add((ListDiff) action.param("diff"));
+         }
+      });
+      Assert.assertTrue(kryo.loadSync(loaded));
+      Assert.assertEquals(2, sizes.size());
+      // the rest comes in one commit with a diff from what was shown first
+      Assert.assertEquals(snapshots.get(1), diffs.get(1).apply(snapshots.get(0)));
+      Assert.assertEquals(KryoTransportLayer.LOAD_CHUNK_SIZE, (int) sizes.get(0));
+      Assert.assertEquals(Boolean.TRUE, partial.get(0));
+      Assert.assertEquals(n, (int) sizes.get(1));
+      Assert.assertNull(partial.get(1));
+      Assert.assertEquals(l.ids(), loaded.ids());
+
+      // a list fitting in one chunk is loaded in one go
+      Storage<Item>.List small = saved.obtainList("streamed_small");
+      small.add(__("s0"));
+      Assert.assertTrue(kryo.saveSync(small, 1));
+      Storage<Item>.List loadedSmall = getStorage().obtainList("streamed_small");
+      Assert.assertTrue(kryo.loadSync(loadedSmall));
+      Assert.assertEquals(1, loadedSmall.size());
+   }
+
+   @Test public void testPersistenceScheduler() throws Exception {
+      final java.util.concurrent.atomic.AtomicInteger writes = new java.util.concurrent.atomic.AtomicInteger();
+      final Storage.TransportLayer transport = new Storage.TransportLayer() {
+         @Override public boolean saveSync(Storage.List list, int limit) {
+            writes.incrementAndGet();
+            return true;
+         }
+         @Override public boolean loadSync(Storage.List list) {
+            list.add(__("loaded"));
+            return true;
+         }
+      };
+      Storage<Item> s = new Storage<Item>(RuntimeEnvironment.application) {
+         @Override public Class<Item> classname() {
+            return Item.class;
+         }
+         @Override public String id(Item item) {
+            return item.id;
+         }
+         @Override protected TransportLayer transportLayer() {
+            return transport;
+         }
+      };
+      s.init();
+      s.persistence().setSaveDelay(50);
+      Storage<Item>.List l = s.obtainList("saved");
+
+      java.util.concurrent.Future<Boolean> first = null;
+      for (int i = 0; i < 10; i++) {
+         l.add(__("item" + i));
+         java.util.concurrent.Future<Boolean> save = l.save();
+         if (first == null) first = save;
+         Assert.assertSame(first, save);
+      }
+      Assert.assertEquals(1, s.persistence().queueDepth());
+      Assert.assertTrue(first.get(5, java.util.concurrent.TimeUnit.SECONDS));
+      Assert.assertEquals(1, writes.get());
+      Assert.assertEquals(9, s.persistence().mergedCount());
+
+      // a save requested after the write started is a separate one
+      Assert.assertTrue(l.save().get(5, java.util.concurrent.TimeUnit.SECONDS));
+      Assert.assertEquals(2, writes.get());
+
+      Assert.assertFalse(l.load().get());
+      Storage<Item>.List empty = s.obtainList("empty");
+      Assert.assertTrue(empty.load().get(5, java.util.concurrent.TimeUnit.SECONDS));
+      Assert.assertEquals(1, empty.size());
+
+      Assert.assertEquals(3, s.persistence().completedCount());
+      Assert.assertEquals(0, s.persistence().queueDepth());
+      Assert.assertTrue(s.persistence().maxLatency() >= 50);
+      // a backlog of loads waits for the background thread instead of running on the caller
+      final CountDownLatch blocked = new CountDownLatch(1);
+      final java.util.Set<Thread> loaders = java.util.Collections.synchronizedSet(new java.util.HashSet<Thread>());
+      s.persistence().submit(new java.util.concurrent.Callable<Boolean>() {
+         @Override public Boolean call() throws Exception {
+            blocked.await();
+            return true;
+         }
+      });
+      java.util.ArrayList<java.util.concurrent.Future<Boolean>> loads = new java.util.ArrayList<java.util.concurrent.Future<Boolean>>();
+      for (int i = 0; i < 200; i++) {
+         loads.add(s.persistence().submit(new java.util.concurrent.Callable<Boolean>() {
+            @Override public Boolean call() throws Exception {
+               loaders.add(Thread.currentThread());
+               return true;
+            }
+         }));
+      }
+      blocked.countDown();
+      for (java.util.concurrent.Future<Boolean> load : loads) {
+         Assert.assertTrue(load.get(5, java.util.concurrent.TimeUnit.SECONDS));
+      }
+      Assert.assertFalse(loaders.contains(Thread.currentThread()));
+   }
+
+   @Test public void testLiveFilter() {
+      Storage<Item> s = getStorage();
+      Storage<Item>.List source = s.obtainList("source");
+      source.addAll(java.util.Arrays.asList(new Item("1", "a"), new Item("2", "b"), new Item("3", "a")));
+
+      Storage<Item>.FilteredList view = source.liveFilter(new Storage.Query<Item>() {
+         @Override public boolean eval(Item item) {
+            return "a".equals(item.text);
+         }
+      });
+      Assert.assertEquals(java.util.Arrays.asList("1", "3"), view.ids());
+
+      final java.util.ArrayList<Storage.Subscription.Action> actions = new java.util.ArrayList<Storage.Subscription.Action>();
+      view.subscribe(new Storage.Subscription() {
+         @Override public void onUpdate(Action action) {
+            actions.add(action);
+         }
+      });
+
+      source.add(new Item("4", "b"));
+      Assert.assertEquals(0, actions.size());
+
+      s.push(new Item("2", "a"));
+      Assert.assertEquals(java.util.Arrays.asList("1", "2", "3"), view.ids());
+      Assert.assertEquals(Storage.Subscription.PUSH, actions.get(0).name);
+
+      // pushes reach the view through its source only
+      s.push(new Item("1", "a"));
+      Assert.assertEquals(2, actions.size());
+      Assert.assertEquals(1, s.listsContaining("1").size());
+      try {
+         view.add(new Item("7", "b"));
+         Assert.fail();
+      } catch (UnsupportedOperationException e) {
+         // read only
+      }
+      Assert.assertEquals(java.util.Arrays.asList("1", "2", "3"), view.ids());
+
+      source.add(0, new Item("5", "a"));
+      Assert.assertEquals(java.util.Arrays.asList("5", "1", "2", "3"), view.ids());
+
+      source.remove(s.get("1"));
+      s.push(new Item("3", "b"));
+      Assert.assertEquals(java.util.Arrays.asList("5", "2"), view.ids());
+
+      source.clear();
+      Assert.assertTrue(view.isEmpty());
+
+      view.detach();
+      source.add(new Item("6", "a"));
+      Assert.assertTrue(view.isEmpty());
+      // the source doesn't keep views that weren't detached alive
+      java.lang.ref.WeakReference<Storage<Item>.FilteredList> forgotten = new java.lang.ref.WeakReference<Storage<Item>.FilteredList>(source.liveFilter(new Storage.Query<Item>() {
+         @Override public boolean eval(Item item) {
+            return true;
+         }
+      }));
+      for (int i = 0; i < 10 && forgotten.get() != null; i++) {
+         System.gc();
+      }
+      Assert.assertNull(forgotten.get());
+      source.add(new Item("8", "a"));
+   }
+
+   @Test public void testParallelFilter() {
+      Storage<Item> s = getStorage();
+      Storage<Item>.List l = s.obtainList("test");
+      java.util.ArrayList<Item> items = new java.util.ArrayList<Item>();
+      java.util.ArrayList<String> expected = new java.util.ArrayList<String>();
+      for (int i = 0; i < 10000; i++) {
+         items.add(new Item("item" + i, Integer.toString(i % 3)));
+         if (i % 3 != 0) expected.add("item" + i);
+      }
+      l.addAll(items);
+      l.setParallelFilterThreshold(100);
+      l.filterSelf(new Storage.Query<Item>() {
+         @Override public boolean eval(Item item) {
+            return !"0".equals(item.text);
+         }
+      });
+      Assert.assertEquals(expected, l.ids());
+   }
+
+   @Test public void testSecondaryIndexes() {
+      Storage<Item> s = getStorage();
+      s.push(new Item("1", "b"));
+      s.addHashIndex("text", new Storage.ComparableKey<Item>() {
+         @Override public Comparable key(Item item) {
+            return item.text;
+         }
+      });
+      s.addSortedIndex("id", new Storage.ComparableKey<Item>() {
+         @Override public Comparable key(Item item) {
+            return Integer.valueOf(item.id);
+         }
+      });
+      Storage<Item>.List l = s.obtainList("test");
+      l.addAll(java.util.Arrays.asList(new Item("2", "a"), new Item("3", "b"), new Item("4", "a")));
+
+      Assert.assertEquals(2, s.find("text", "b").size());
+      s.push(new Item("3", "a"));
+      Assert.assertEquals(1, s.find("text", "b").size());
+      Assert.assertEquals(3, s.find("text", "a").size());
+
+      java.util.ArrayList<Item> range = s.findRange("id", 2, 4);
+      Assert.assertEquals(2, range.size());
+      Assert.assertEquals("2", range.get(0).id);
+      Assert.assertEquals("3", range.get(1).id);
+      Assert.assertEquals(2, s.findRange("id", 3, null).size());
+
+      s.delete("4");
+      Assert.assertEquals(2, s.find("text", "a").size());
+      Assert.assertEquals(1, s.findRange("id", 3, null).size());
+   }
+
+   @Test public void testAggregates() {
+      Storage<Item> s = getStorage();
+      s.push(new Item("1", "a"));
+      Aggregate<Item> byText = s.addAggregate("byText", null, new Storage.ComparableKey<Item>() {
+         @Override public Comparable key(Item item) {
+            return item.text;
+         }
+      }, new Storage.LongKey<Item>() {
+         @Override public long key(Item item) {
+            return Long.parseLong(item.id);
+         }
+      });
+      final int[] updates = new int[1];
+      byText.subscribe(new Storage.Subscription() {
+         @Override public void onUpdate(Action action) {
+            updates[0]++;
+         }
+      });
+
+      Storage<Item>.List l = s.obtainList("test");
+      l.addAll(java.util.Arrays.asList(new Item("2", "b"), new Item("3", "a"), new Item("4", "a")));
+      Assert.assertEquals(4, byText.count());
+      Assert.assertEquals(3, byText.count("a"));
+      Assert.assertEquals(8, byText.group("a").sum());
+      Assert.assertEquals(Long.valueOf(1), byText.group("a").min());
+      Assert.assertEquals(Long.valueOf(4), byText.group("a").max());
+      Assert.assertEquals(3, updates[0]);
+
+      s.push(new Item("4", "b"));
+      Assert.assertEquals(Long.valueOf(3), byText.group("a").max());
+      Assert.assertEquals(6, byText.group("b").sum());
+
+      s.delete("2");
+      Assert.assertEquals(1, byText.count("b"));
+      Assert.assertEquals(8, byText.total().sum());
+      Assert.assertEquals(Long.valueOf(4), byText.total().max());
+   }
+
+   @Test public void testSectionedList() {
+      Storage<Item> s = getStorage();
+      Storage<Item>.List source = s.obtainList("source");
+      source.addAll(java.util.Arrays.asList(new Item("1", "mon"), new Item("2", "mon"), new Item("3", "tue")));
+
+      Storage<Item>.SectionedList sectioned = source.sectioned(new Storage.ComparableKey<Item>() {
+         @Override public Comparable key(Item item) {
+            return item.text;
+         }
+      });
+      Assert.assertEquals(2, sectioned.sections().size());
+      Assert.assertEquals(java.util.Arrays.asList("1", "2"), sectioned.section("mon").ids());
+
+      final Storage.Subscription.Action[] last = new Storage.Subscription.Action[1];
+      sectioned.subscribe(new Storage.Subscription() {
+         @Override public void onUpdate(Action action) {
+            last[0] = action;
+         }
+      });
+
+      source.add(new Item("4", "wed"));
+      Assert.assertEquals(java.util.Arrays.asList("wed"), last[0].param("insertedSections"));
+      Assert.assertEquals("wed", sectioned.sections().get(2).key);
+
+      s.push(new Item("2", "tue"));
+      Assert.assertEquals(java.util.Arrays.asList("1"), sectioned.section("mon").ids());
+      Assert.assertEquals(java.util.Arrays.asList("2", "3"), sectioned.section("tue").ids());
+      java.util.HashMap changed = (java.util.HashMap) last[0].param("changedSections");
+      Assert.assertTrue(changed.containsKey("mon"));
+      Assert.assertTrue(changed.containsKey("tue"));
+
+      source.remove(s.get("1"));
+      Assert.assertEquals(java.util.Arrays.asList("mon"), last[0].param("removedSections"));
+      Assert.assertEquals("tue", sectioned.sections().get(0).key);
+
+      source.add(0, new Item("5", "wed"));
+      Assert.assertEquals("wed", sectioned.sections().get(0).key);
+      Assert.assertEquals(java.util.Arrays.asList("5", "4"), sectioned.section("wed").ids());
+
+      source.clear();
+      Assert.assertEquals(Boolean.TRUE, last[0].param("reloaded"));
+      Assert.assertTrue(sectioned.sections().isEmpty());
+      sectioned.detach();
+
+      // the source doesn't keep views that weren't detached alive
+      java.lang.ref.WeakReference<Storage<Item>.SectionedList> forgotten = new java.lang.ref.WeakReference<Storage<Item>.SectionedList>(source.sectioned(new Storage.ComparableKey<Item>() {
+         @Override public Comparable key(Item item) {
+            return item.text;
+         }
+      }));
+      for (int i = 0; i < 10 && forgotten.get() != null; i++) {
+         System.gc();
+      }
+      Assert.assertNull(forgotten.get());
+      source.add(new Item("6", "thu"));
+   }
+
    @Test public void testRetainNull() {
       Storage<Item> s = getStorage();
       s.retain(null); // this call shouldn't throw, instead should be ignored
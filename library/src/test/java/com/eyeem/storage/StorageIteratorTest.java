@@ -322,7 +322,7 @@ public class StorageIteratorTest {
     * C4-F: remove() precondition is not satisfied - remove() results in an IllegalStateException
     * C5-T: collection in consistent state while iterator in use - remove() does not result in a ConcurrentModificationException
     *
-    * POTATO NOTE: List depends on CopyOnWriteArrayList so this is not supported
+    * POTATO NOTE: List iterates over immutable snapshots so this is not supported
     */
    @Test(expected=UnsupportedOperationException.class)
    public final void testRemove_C4() throws UnsupportedOperationException, 
@@ -348,7 +348,7 @@ public class StorageIteratorTest {
     * C5-F: collection in inconsistent state while iterator in use - 
     *    remove() results in a ConcurrentModificationException
     *
-    * POTATO NOTE: List depends on CopyOnWriteArrayList so this is not supported
+    * POTATO NOTE: List iterates over immutable snapshots so this is not supported
     */
    @Test(expected=UnsupportedOperationException.class)
    public final void testRemove_C5() throws UnsupportedOperationException, 
@@ -363,4 +363,47 @@ public class StorageIteratorTest {
       itr.remove();
    }//testRemove_C5
 
-}
\ No newline at end of file
+   @Test
+   public final void testListIterator()
+   {
+      Storage<Item>.List s = testList();
+      s.add(__("cat"));
+      s.add(__("dog"));
+      s.add(__("cow"));
+      java.util.ListIterator<Item> itr = s.listIterator(1);
+      assertTrue(itr.hasPrevious());
+      assertEquals("dog", itr.next().id);
+      itr.remove();
+      assertEquals(1, itr.nextIndex());
+      itr.add(__("pig"));
+      assertEquals("cow", itr.next().id);
+      itr.set(__("hen"));
+      assertEquals("hen", itr.previous().id);
+      assertEquals("pig", itr.previous().id);
+      assertEquals(3, s.size());
+      assertEquals("cat", s.get(0).id);
+      assertEquals("pig", s.get(1).id);
+      assertEquals("hen", s.get(2).id);
+   }
+
+   @Test
+   public final void testSubList()
+   {
+      Storage<Item>.List s = testList();
+      for (int i = 0; i < 10; i++) {
+         s.add(__("item" + i));
+      }
+      List<Item> sub = s.subList(2, 5);
+      assertEquals(3, sub.size());
+      assertEquals("item2", sub.get(0).id);
+      s.remove(0);
+      assertEquals("item2", sub.get(0).id);
+      assertEquals("item4", sub.subList(2, 3).get(0).id);
+
+      List<Item> window = s.window(7, 5);
+      assertEquals(2, window.size());
+      assertEquals("item9", window.get(1).id);
+      assertTrue(s.window(20, 5).isEmpty());
+   }
+
+}
@@ -1,5 +1,6 @@
 package com.eyeem.storage.processor;
 
+import com.eyeem.storage.annotation.Indexed;
 import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.JavaFile;
@@ -14,9 +15,13 @@ import java.util.ArrayList;
 import javax.annotation.processing.Filer;
 import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
 
 /**
  * Created by budius on 28.07.15.
@@ -24,10 +29,13 @@ import javax.lang.model.element.TypeElement;
 public class CodeWriter implements Runnable {
 
     private static final String ID = "@com.eyeem.storage.annotation.Id";
+    private static final String INDEXED = "com.eyeem.storage.annotation.Indexed";
 
     private final Filer filer;
 
     private String id;
+    private boolean numericId;
+    private final ArrayList<Element> indexed = new ArrayList<>();
     private final ClassName generatedClass;
     private final ClassName dataClass;
     private final ClassName context;
@@ -55,15 +63,27 @@ public class CodeWriter implements Runnable {
                 if (ID.equals(am.toString())) {
                     // found the ID
                     id = enclosedElement.toString();
-                    if (!enclosedElement.asType().toString().contains("java.lang.String")) {
+                    TypeKind kind = idType(enclosedElement).getKind();
+                    numericId = kind == TypeKind.LONG || kind == TypeKind.INT;
+                    if (!numericId && !enclosedElement.asType().toString().contains("java.lang.String")) {
                         id = id + ".toString()";
                     }
                 }
+                if (INDEXED.equals(am.getAnnotationType().toString())) {
+                    indexed.add(enclosedElement);
+                }
                 log("mirror: " + am.toString() + "; name: " + am.getAnnotationType().asElement().getSimpleName());
             }
         }
     }
 
+    private static TypeMirror idType(Element element) {
+        if (element.getKind() == ElementKind.METHOD) {
+            return ((ExecutableElement) element).getReturnType();
+        }
+        return element.asType();
+    }
+
     @Override
     public void run() {
         try {
@@ -105,15 +125,51 @@ public class CodeWriter implements Runnable {
                 .build();
         methods.add(method);
 
-        method = MethodSpec.methodBuilder("id")
-                .addAnnotation(Override.class)
-                .addModifiers(Modifier.PUBLIC)
-                .addParameter(dataClass, "object")
-                .returns(String.class)
-                .addStatement("return object." + id)
-                .build();
+        if (numericId) {
+            // numeric ids go through LongStorage which keeps the String ids
+            method = MethodSpec.methodBuilder("longId")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameter(dataClass, "object")
+                    .returns(long.class)
+                    .addStatement("return object." + id)
+                    .build();
+        } else {
+            method = MethodSpec.methodBuilder("id")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameter(dataClass, "object")
+                    .returns(String.class)
+                    .addStatement("return object." + id)
+                    .build();
+        }
         methods.add(method);
 
+        if (!indexed.isEmpty()) {
+            MethodSpec.Builder init = MethodSpec.methodBuilder("init")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PUBLIC)
+                    .addStatement("super.init()");
+            ClassName comparableKey = ClassName.get("com.eyeem.storage", "Storage", "ComparableKey");
+            for (Element element : indexed) {
+                String accessor = element.toString();
+                String name = accessor.endsWith("()") ? accessor.substring(0, accessor.length() - 2) : accessor;
+                TypeSpec key = TypeSpec.anonymousClassBuilder("")
+                        .addSuperinterface(ParameterizedTypeName.get(comparableKey, dataClass))
+                        .addMethod(MethodSpec.methodBuilder("key")
+                                .addAnnotation(Override.class)
+                                .addModifiers(Modifier.PUBLIC)
+                                .addParameter(dataClass, "object")
+                                .returns(Comparable.class)
+                                .addStatement("return object." + accessor)
+                                .build())
+                        .build();
+                boolean sorted = element.getAnnotation(Indexed.class).sorted();
+                init.addStatement("$L($S, $L)", sorted ? "addSortedIndex" : "addHashIndex", name, key);
+            }
+            methods.add(init.build());
+        }
+
         method = MethodSpec.methodBuilder("classname")
                 .addAnnotation(Override.class)
                 .addModifiers(Modifier.PUBLIC)
@@ -144,7 +200,7 @@ public class CodeWriter implements Runnable {
         // build class
         TypeSpec.Builder builder = TypeSpec.classBuilder(generatedClassName)
                 .addModifiers(Modifier.PUBLIC)
-                .superclass(ParameterizedTypeName.get(ClassName.get("com.eyeem.storage", "Storage"), dataClass));
+                .superclass(ParameterizedTypeName.get(ClassName.get("com.eyeem.storage", numericId ? "LongStorage" : "Storage"), dataClass));
         for (FieldSpec fieldSpec : fields) builder.addField(fieldSpec);
         for (MethodSpec methodSpec : methods) builder.addMethod(methodSpec);
         TypeSpec typeSpec = builder.build();